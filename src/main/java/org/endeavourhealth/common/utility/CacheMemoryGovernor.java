@@ -0,0 +1,261 @@
+package org.endeavourhealth.common.utility;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.jvm.MemoryUsageGaugeSet;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.sun.management.GarbageCollectionNotificationInfo;
+import org.endeavourhealth.common.config.ConfigManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * shrinks registered caches when the heap is nearly full, so they give memory back before it leads to long
+ * GC pauses or an OutOfMemoryError. After every garbage collection, the heap still in use (taken from the GC
+ * notification's usage after the GC of each heap pool, i.e. what survived it) is compared to the maximum heap size,
+ * as given by the same MemoryUsageGaugeSet that MetricsHelper registers. If above the
+ * threshold, every registered cache is told to shed a fraction of its entries, from the minimum fraction at the
+ * threshold up to the maximum fraction as the heap gets completely full.
+ *
+ * Caches are held weakly, so registering one doesn't stop it being garbage collected. The thresholds can be set
+ * in the "cache_memory_governor" config record, e.g.
+ * {"threshold": 0.85, "min_shed_fraction": 0.1, "max_shed_fraction": 0.5, "min_interval_ms": 1000}
+ */
+public class CacheMemoryGovernor {
+    private static final Logger LOG = LoggerFactory.getLogger(CacheMemoryGovernor.class);
+
+    private static final String CONFIG_NAME = "cache_memory_governor";
+    private static final String GC_NOTIFICATION = "com.sun.management.gc.notification";
+    private static final String METRICS_PREFIX = "CacheMemoryGovernor";
+
+    private static CacheMemoryGovernor instance;
+    private static Object syncObj = new Object();
+
+    private final Set<SheddableCache> caches = Collections.newSetFromMap(new WeakHashMap<>());
+    private final AtomicBoolean shedding = new AtomicBoolean();
+    private final Gauge<Long> heapMax;
+    private final Gauge<Double> heapUsage;
+    private final Set<String> heapPoolNames = new HashSet<>();
+    private volatile double occupancyAfterGc = -1;
+    private double threshold = 0.85;
+    private double minShedFraction = 0.1;
+    private double maxShedFraction = 0.5;
+    private long minIntervalMs = 1000;
+    private volatile long lastShedMs = 0;
+    private volatile Meter shedMeter = null;
+    private volatile Meter shedEventMeter = null;
+
+    private static CacheMemoryGovernor instance() {
+        if (instance == null) {
+            synchronized (syncObj) {
+                if (instance == null) {
+                    instance = new CacheMemoryGovernor();
+                }
+            }
+        }
+        return instance;
+    }
+
+    private CacheMemoryGovernor() {
+        loadConfig();
+
+        Map<String, Metric> memoryGauges = new MemoryUsageGaugeSet().getMetrics();
+        this.heapMax = (Gauge<Long>)memoryGauges.get("heap.max");
+        this.heapUsage = (Gauge<Double>)memoryGauges.get("heap.usage");
+
+        for (MemoryPoolMXBean pool: ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                heapPoolNames.add(pool.getName());
+            }
+        }
+
+        //GC notifications aren't part of the standard API, but are supported by all the usual JVMs
+        NotificationListener listener = (notification, handback) -> onNotification(notification);
+        for (GarbageCollectorMXBean gcBean: ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (gcBean instanceof NotificationEmitter) {
+                ((NotificationEmitter)gcBean).addNotificationListener(listener, null, null);
+            }
+        }
+
+        LOG.info("Cache memory governor started with threshold " + threshold);
+    }
+
+    private void loadConfig() {
+        try {
+            JsonNode json = ConfigManager.getConfigurationAsJson(CONFIG_NAME);
+            if (json == null) {
+                return;
+            }
+
+            if (json.has("threshold")) {
+                threshold = json.get("threshold").asDouble();
+            }
+            if (json.has("min_shed_fraction")) {
+                minShedFraction = json.get("min_shed_fraction").asDouble();
+            }
+            if (json.has("max_shed_fraction")) {
+                maxShedFraction = json.get("max_shed_fraction").asDouble();
+            }
+            if (json.has("min_interval_ms")) {
+                minIntervalMs = json.get("min_interval_ms").asLong();
+            }
+
+        } catch (Exception ex) {
+            //the defaults are fine if there's no config (or ConfigManager isn't initialised)
+            LOG.warn("Error loading " + CONFIG_NAME + " config record, using defaults", ex);
+        }
+    }
+
+    /**
+     * registers a cache (e.g. an ExpiringCache or ExpiringSet) to be shrunk when the heap is nearly full
+     */
+    public static void register(SheddableCache cache) {
+        instance().registerImpl(cache);
+    }
+
+    public static void unregister(SheddableCache cache) {
+        instance().unregisterImpl(cache);
+    }
+
+    /**
+     * registers the number of entries shed, and the number of times caches were shed, as meters
+     * in the MetricsHelper registry (so ConfigManager must be initialised first)
+     */
+    public static void enableMetrics() {
+        instance().enableMetricsImpl();
+    }
+
+    /**
+     * checks the heap occupancy after the last GC and sheds if it's over the threshold, rather than waiting for
+     * the next GC. If there's not been a GC yet, the current heap usage is used. Returns the number of entries shed.
+     */
+    public static long checkNow() {
+        return instance().checkNowImpl();
+    }
+
+    private void registerImpl(SheddableCache cache) {
+        synchronized (caches) {
+            caches.add(cache);
+        }
+    }
+
+    private void unregisterImpl(SheddableCache cache) {
+        synchronized (caches) {
+            caches.remove(cache);
+        }
+    }
+
+    private void enableMetricsImpl() {
+        MetricRegistry registry = MetricsHelper.getRegistry();
+        shedMeter = registry.meter(MetricRegistry.name(METRICS_PREFIX, "Entries Shed"));
+        shedEventMeter = registry.meter(MetricRegistry.name(METRICS_PREFIX, "Shed Events"));
+    }
+
+    private long checkNowImpl() {
+        double occupancy = occupancyAfterGc;
+        if (occupancy < 0) {
+            occupancy = heapUsage.getValue().doubleValue();
+        }
+        return checkAndShed(occupancy);
+    }
+
+    private void onNotification(Notification notification) {
+        if (!GC_NOTIFICATION.equals(notification.getType())) {
+            return;
+        }
+
+        try {
+            GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData)notification.getUserData());
+            double occupancy = getHeapOccupancyAfterGc(info.getGcInfo().getMemoryUsageAfterGc());
+            occupancyAfterGc = occupancy;
+            checkAndShed(occupancy);
+        } catch (Throwable t) {
+            //never let anything out into the JMX notification thread
+            LOG.error("Error shedding caches after GC", t);
+        }
+    }
+
+    private long checkAndShed(double occupancy) {
+        if (occupancy < threshold
+                || System.currentTimeMillis() - lastShedMs < minIntervalMs) {
+            return 0;
+        }
+
+        //only shed from one thread at a time, as GCs for different collectors can finish together
+        if (!shedding.compareAndSet(false, true)) {
+            return 0;
+        }
+
+        try {
+            //scale from the min fraction at the threshold to the max fraction when the heap is full
+            double over = (occupancy - threshold) / Math.max(0.01, 1d - threshold);
+            double fraction = minShedFraction + (maxShedFraction - minShedFraction) * Math.min(1d, over);
+
+            List<SheddableCache> toShed;
+            synchronized (caches) {
+                toShed = new ArrayList<>(caches);
+            }
+
+            long shed = 0;
+            for (SheddableCache cache: toShed) {
+                shed += cache.shed(fraction);
+            }
+
+            lastShedMs = System.currentTimeMillis();
+
+            Meter shedMeter = this.shedMeter;
+            if (shedMeter != null) {
+                shedMeter.mark(shed);
+                shedEventMeter.mark();
+            }
+
+            LOG.warn("Heap " + String.format("%.1f", occupancy * 100) + "% full after GC, so shed "
+                    + String.format("%.0f", fraction * 100) + "% (" + shed + " entries) from " + toShed.size() + " caches");
+            return shed;
+
+        } finally {
+            shedding.set(false);
+        }
+    }
+
+    /**
+     * returns the fraction of the maximum heap in use after a GC. The notification has the usage of every pool
+     * after that GC, including the old generation after a young GC, whereas the pools' own collection usage
+     * is only updated when they're collected themselves, so would be stale or zero until an old or mixed GC.
+     */
+    private double getHeapOccupancyAfterGc(Map<String, MemoryUsage> usageAfterGc) {
+        long max = heapMax.getValue().longValue();
+        if (max <= 0) {
+            return 0; //no maximum heap size
+        }
+
+        long used = 0;
+        for (Map.Entry<String, MemoryUsage> entry: usageAfterGc.entrySet()) {
+            if (heapPoolNames.contains(entry.getKey())) {
+                used += entry.getValue().getUsed();
+            }
+        }
+
+        return (double)used / (double)max;
+    }
+}
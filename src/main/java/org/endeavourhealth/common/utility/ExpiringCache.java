@@ -1,18 +1,50 @@
 package org.endeavourhealth.common.utility;
 
+import com.google.common.base.Strings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * simple cache class, using a concurrent map, to allow us cache items and expire them automatically
- * NOTE: this class doesn't remove expired objects, so won't free up memory automatically
+ * Expired objects are removed a few at a time as the cache is used (see ExpiringCacheSweeper), so memory is
+ * freed up without any full scan of the map. cleanUp() can be called to remove all expired objects straight away.
+ * Entries normally live for the cache duration, but can be given their own lifetime when put, or
+ * by an ExpiringCacheExpiryPolicy.
+ * The cache can optionally be bounded by a maximum number of entries or a maximum total weight, in which case
+ * entries are evicted using W-TinyLFU (see ExpiringCacheEviction).
  */
-public class ExpiringCache<K,V> implements Map<K,V> {
+public class ExpiringCache<K,V> implements Map<K,V>, SheddableCache {
+    private static final Logger LOG = LoggerFactory.getLogger(ExpiringCache.class);
 
     private final Map<K, ExpiringCacheElement<V>> innerMap = new ConcurrentHashMap<>();
+    private final Map<K, CompletableFuture<V>> loading = new ConcurrentHashMap<>();
     private final long msDuration;
+    private final ExpiringCacheSweeper sweeper;
+    private final ExpiringCacheEviction eviction;
+    private final ExpiringCacheWeigher<K,V> weigher;
+    private volatile ExpiringCacheStatsCounter statsCounter = null;
+    private volatile ExpiringCacheMetrics metrics = null;
+    private volatile ExpiringCacheOffHeapTier<V> offHeapTier = null;
+    private volatile double refreshFraction = 0;
+    private volatile ThreadPoolExecutor refreshExecutor = null;
+    private volatile ExpiringCacheExpiryPolicy<K,V> expiryPolicy = null;
 
     public enum Duration {
         OneMinute(60 * 1000),
@@ -32,11 +64,271 @@ public class ExpiringCache<K,V> implements Map<K,V> {
     }
 
     public ExpiringCache(long msDuration) {
-        this.msDuration = msDuration;
+        this(msDuration, -1, null);
     }
 
     public ExpiringCache(Duration d) {
-        this.msDuration = d.getMs();
+        this(d.getMs());
+    }
+
+    /**
+     * creates a cache that holds at most maximumSize entries
+     */
+    public ExpiringCache(long msDuration, long maximumSize) {
+        this(msDuration, validateMaximumSize(maximumSize), null);
+    }
+
+    public ExpiringCache(Duration d, long maximumSize) {
+        this(d.getMs(), maximumSize);
+    }
+
+    /**
+     * checked before calling the constructor below, which would take a negative maximum to mean no limit
+     */
+    private static long validateMaximumSize(long maximumSize) {
+        if (maximumSize < 0) {
+            throw new IllegalArgumentException("Maximum size must not be negative");
+        }
+        return maximumSize;
+    }
+
+    /**
+     * creates a cache where the total weight of the entries, as calculated by the weigher (e.g. an estimate of
+     * their size in bytes) is at most maximumWeight. If weigher is null, every entry has a weight of one,
+     * so this is the same as limiting the number of entries. A negative maximumWeight means no limit.
+     */
+    public ExpiringCache(long msDuration, long maximumWeight, ExpiringCacheWeigher<K,V> weigher) {
+        this.msDuration = msDuration;
+        this.weigher = weigher;
+
+        if (maximumWeight >= 0) {
+            this.eviction = new ExpiringCacheEviction(innerMap, maximumWeight, weigher != null, e -> onEvicted(e));
+            this.statsCounter = new ExpiringCacheStatsCounter();
+        } else {
+            this.eviction = null;
+        }
+
+        this.sweeper = new ExpiringCacheSweeper(innerMap, msDuration, e -> onRemoved(e));
+    }
+
+    /**
+     * sets a policy to work out how long each entry put in the cache lives for, instead of the cache duration.
+     * Entries put using put(key, value, msTtl) are unaffected.
+     */
+    public void setExpiryPolicy(ExpiringCacheExpiryPolicy<K,V> expiryPolicy) {
+        this.expiryPolicy = expiryPolicy;
+    }
+
+    /**
+     * turns on refresh-ahead for values got using get(key, loader). Once a value is older than refreshFraction
+     * of its lifetime (e.g. 0.8 for 80%), the next get(key, loader) returns it straight away but also
+     * reloads it in the background, so callers only have to wait for the loader if the value has actually expired.
+     * Refreshes run on up to the given number of threads, and if more than maxQueued are waiting, new ones are
+     * skipped rather than making the caller wait. A refreshFraction of zero turns refresh-ahead off again.
+     */
+    public void setRefreshAhead(double refreshFraction, int threads, int maxQueued) {
+        if (refreshFraction < 0
+                || refreshFraction >= 1) {
+            throw new IllegalArgumentException("Refresh fraction must be at least zero and less than one");
+        }
+
+        ThreadPoolExecutor oldExecutor = this.refreshExecutor;
+
+        if (refreshFraction > 0) {
+            ThreadFactory namingFactory = new NamingThreadFactory("ExpiringCacheRefresh");
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(maxQueued), r -> {
+                //refresh threads shouldn't keep the app running
+                Thread t = namingFactory.newThread(r);
+                t.setDaemon(true);
+                return t;
+            });
+            executor.allowCoreThreadTimeOut(true);
+            this.refreshExecutor = executor;
+        } else {
+            this.refreshExecutor = null;
+        }
+        this.refreshFraction = refreshFraction;
+
+        if (oldExecutor != null) {
+            oldExecutor.shutdown();
+        }
+    }
+
+    /**
+     * adds an off-heap second tier to a size or weight bounded cache. Entries evicted from the cache are encoded
+     * using the codec and kept in a direct buffer of maxBytes, and moved back into the cache when next read.
+     * Once the buffer is full, the oldest entries in it are dropped to make room. Useful for large values,
+     * such as serialised resources, which would otherwise make the heap and GC pauses much bigger.
+     */
+    public synchronized void setOffHeapTier(long maxBytes, ExpiringCacheCodec<V> codec) {
+        if (eviction == null) {
+            throw new IllegalStateException("Cache must have a maximum size or weight to use an off-heap tier");
+        }
+        if (offHeapTier != null) {
+            offHeapTier.clear();
+        }
+        offHeapTier = new ExpiringCacheOffHeapTier<>(maxBytes, codec);
+    }
+
+    /**
+     * writes the cache's unexpired entries, with their remaining time to live, to the file using the codecs, so
+     * they can be restored by loadSnapshot(..) after a restart. Anything in an off-heap tier isn't included.
+     * The file is replaced atomically once fully written. Returns the number of entries written.
+     */
+    public int saveSnapshot(File file, ExpiringCacheCodec<K> keyCodec, ExpiringCacheCodec<V> valueCodec) throws Exception {
+        return ExpiringCacheSnapshot.save(innerMap, file, keyCodec, valueCodec);
+    }
+
+    /**
+     * restores the entries from a file written by saveSnapshot(..), with the time since it was written counted
+     * against their time to live. Entries already in the cache are kept rather than replaced. The values are only
+     * decoded from the file when first read, unless the cache has a weigher, which needs them straight away.
+     * Returns the number of entries restored. If the file is truncated or corrupt, an IOException is thrown
+     * and nothing is restored.
+     */
+    public int loadSnapshot(File file, ExpiringCacheCodec<K> keyCodec, ExpiringCacheCodec<V> valueCodec) throws Exception {
+        return ExpiringCacheSnapshot.load(file, keyCodec, valueCodec, weigher == null, eviction != null, element -> {
+            weigh(element);
+
+            K key = (K)element.getKey();
+            if (innerMap.putIfAbsent(key, element) == null) {
+                sweeper.add(element);
+                if (eviction != null) {
+                    eviction.recordWrite((ExpiringCacheBoundedElement<?>)element, null);
+                }
+            }
+        });
+    }
+
+    /**
+     * starts counting hits, misses and loads for getStats(). Size or weight bounded caches always do this.
+     */
+    public synchronized void recordStats() {
+        if (statsCounter == null) {
+            statsCounter = new ExpiringCacheStatsCounter();
+        }
+    }
+
+    /**
+     * records stats (see recordStats()) and registers them with the MetricsHelper registry
+     * under "ExpiringCache.<cacheName>"
+     */
+    public synchronized void enableMetrics(String cacheName) {
+        if (Strings.isNullOrEmpty(cacheName)) {
+            throw new IllegalArgumentException("Cache must have a name to enable metrics");
+        }
+        recordStats();
+        if (metrics != null) {
+            metrics.unregister();
+        }
+        metrics = new ExpiringCacheMetrics(cacheName, () -> getStats());
+    }
+
+    /**
+     * removes the metrics registered by enableMetrics(..), e.g. when the cache is no longer used
+     */
+    public synchronized void disableMetrics() {
+        if (metrics != null) {
+            metrics.unregister();
+            metrics = null;
+        }
+    }
+
+    /**
+     * returns the stats so far. Apart from the estimated size, these are only recorded
+     * for size or weight bounded caches or after recordStats() has been called.
+     */
+    public ExpiringCacheStats getStats() {
+        long evictionCount = eviction != null ? eviction.getEvictionCount() : 0;
+        long estimatedSize = innerMap.size();
+
+        long offHeapBytesUsed = 0;
+        long offHeapOverwrittenCount = 0;
+        ExpiringCacheOffHeapTier<V> offHeapTier = this.offHeapTier;
+        if (offHeapTier != null) {
+            offHeapBytesUsed = offHeapTier.getBytesUsed();
+            offHeapOverwrittenCount = offHeapTier.getOverwrittenCount();
+        }
+
+        ExpiringCacheStatsCounter statsCounter = this.statsCounter;
+        if (statsCounter == null) {
+            return new ExpiringCacheStats(0, 0, 0, 0, 0, 0, evictionCount, estimatedSize, offHeapBytesUsed, offHeapOverwrittenCount);
+        } else {
+            return statsCounter.snapshot(evictionCount, estimatedSize, offHeapBytesUsed, offHeapOverwrittenCount);
+        }
+    }
+
+    private void onEvicted(ExpiringCacheElement<?> element) {
+        //so the evicted value isn't kept on the heap by the sweeper until it would have expired
+        sweeper.remove(element);
+
+        ExpiringCacheOffHeapTier<V> offHeapTier = this.offHeapTier;
+        //if it's already been replaced by a newer value, there's no point keeping it (the tier checks this
+        //again once it's stored it, in case a newer value is put at the same time)
+        if (offHeapTier != null
+                && !element.isExpired()
+                && !innerMap.containsKey(element.getKey())) {
+            offHeapTier.put((ExpiringCacheElement<V>)element, innerMap);
+        }
+    }
+
+    /**
+     * moves the element for the key from the off-heap tier back into the map, returning null if it's not there
+     */
+    private ExpiringCacheElement<V> promote(K key, ExpiringCacheOffHeapTier<V> offHeapTier) {
+        ExpiringCacheElement<V> element = offHeapTier.get(key);
+        if (element == null) {
+            return null;
+        }
+        weigh(element);
+
+        //if it's been put again in the meantime, keep the newer one
+        ExpiringCacheElement<V> existing = innerMap.putIfAbsent(key, element);
+        if (existing != null) {
+            return existing;
+        }
+
+        offHeapTier.remove(key);
+        sweeper.add(element);
+        eviction.recordWrite((ExpiringCacheBoundedElement<?>)element, null);
+        return element;
+    }
+
+    private void weigh(ExpiringCacheElement<V> element) {
+        //the weight is only used to bound the cache, so there's nothing to do if it's unbounded
+        if (weigher != null
+                && eviction != null) {
+            K key = (K)element.getKey();
+            int weight = weigher.weigh(key, element.getObject());
+            if (weight < 0) {
+                throw new IllegalArgumentException("Negative weight " + weight + " for key " + key);
+            }
+            ((ExpiringCacheBoundedElement<V>)element).weight = weight;
+        }
+    }
+
+    private void onRemoved(ExpiringCacheElement<?> element) {
+        if (eviction != null) {
+            eviction.recordRemoval((ExpiringCacheBoundedElement<?>)element);
+        }
+    }
+
+    /**
+     * removes all expired objects now, rather than waiting for them to be removed as the cache is used
+     */
+    public void cleanUp() {
+        sweeper.sweepAll();
+    }
+
+    /**
+     * removes expired objects, then the given fraction of the rest, starting with those that will
+     * expire soonest. Used to free memory when the heap is nearly full (see CacheMemoryGovernor).
+     */
+    @Override
+    public long shed(double fraction) {
+        sweeper.sweepAll();
+        long count = (long)Math.ceil(innerMap.size() * fraction);
+        return sweeper.shed(count);
     }
 
 
@@ -66,18 +358,299 @@ public class ExpiringCache<K,V> implements Map<K,V> {
 
     @Override
     public V get(Object key) {
+        ExpiringCacheElement<V> element = getElement(key);
+        if (element == null) {
+            return null;
+        } else {
+            return element.getObject();
+        }
+    }
+
+    /**
+     * returns the element for the key, unless it's missing or expired
+     */
+    private ExpiringCacheElement<V> getElement(Object key) {
+        sweeper.sweepIfDue();
+
         ExpiringCacheElement<V> element = innerMap.get(key);
-        if (element == null
-                || element.isExpired()) {
+
+        if (element == null) {
+            ExpiringCacheOffHeapTier<V> offHeapTier = this.offHeapTier;
+            if (offHeapTier != null) {
+                element = promote((K)key, offHeapTier);
+            }
+        }
+
+        if (element == null) {
+            recordMiss();
+            return null;
+
+        } else if (element.isExpired()) {
+            //no point waiting for the sweeper to get to it
+            if (innerMap.remove(key, element)) {
+                sweeper.remove(element);
+                onRemoved(element);
+            }
+            ExpiringCacheStatsCounter statsCounter = this.statsCounter;
+            if (statsCounter != null) {
+                statsCounter.recordExpired();
+            }
             return null;
         } else {
+            if (eviction != null) {
+                eviction.recordRead((ExpiringCacheBoundedElement<?>)element);
+            }
+            ExpiringCacheStatsCounter statsCounter = this.statsCounter;
+            if (statsCounter != null) {
+                statsCounter.recordHit();
+            }
+            return element;
+        }
+    }
+
+    /**
+     * gets the value for the key, using the loader to load it if it's not in the cache or has expired.
+     * Only one thread loads a given key at a time, with any other threads wanting the same key
+     * waiting for that load to finish and getting the same result. If the loader throws an exception,
+     * it's thrown to all those threads, and nothing is cached, so the next call will try again.
+     */
+    public V get(K key, ExpiringCacheLoader<K,V> loader) throws Exception {
+        ExpiringCacheElement<V> element = getElement(key);
+        if (element != null
+                && element.getObject() != null) {
+
+            if (System.currentTimeMillis() >= element.refreshAt) {
+                refreshAhead(key, loader, element);
+            }
             return element.getObject();
         }
+
+        CompletableFuture<V> future = new CompletableFuture<>();
+        CompletableFuture<V> existingLoad = loading.putIfAbsent(key, future);
+        if (existingLoad != null) {
+            return waitForLoad(existingLoad);
+        }
+
+        try {
+            //another thread may have finished loading this key between our get and putIfAbsent above
+            V value;
+            element = innerMap.get(key);
+            if (element != null
+                    && !element.isExpired()) {
+                value = element.getObject();
+
+            } else {
+                value = load(key, loader);
+                if (value != null) {
+                    put(key, value);
+                }
+            }
+
+            future.complete(value);
+            return value;
+
+        } catch (Throwable t) {
+            future.completeExceptionally(t);
+            throw t;
+
+        } finally {
+            loading.remove(key, future);
+        }
+    }
+
+    /**
+     * starts reloading the key in the background, unless it's already being loaded or the refresh executor is full
+     */
+    private void refreshAhead(K key, ExpiringCacheLoader<K,V> loader, ExpiringCacheElement<V> element) {
+
+        //only try once per element, so a failing loader isn't called on every read until the value expires
+        element.refreshAt = Long.MAX_VALUE;
+
+        ThreadPoolExecutor executor = this.refreshExecutor;
+        if (executor == null) {
+            return;
+        }
+
+        //use the same in-flight map as normal loads, so a reader finding the value expired waits for this refresh
+        CompletableFuture<V> future = new CompletableFuture<>();
+        if (loading.putIfAbsent(key, future) != null) {
+            return;
+        }
+
+        try {
+            executor.execute(() -> {
+                try {
+                    V value = load(key, loader);
+                    if (value != null) {
+                        put(key, value);
+                    }
+                    future.complete(value);
+
+                } catch (Throwable t) {
+                    LOG.warn("Failed to refresh cached value for " + key, t);
+                    future.completeExceptionally(t);
+
+                } finally {
+                    loading.remove(key, future);
+                }
+            });
+
+        } catch (RejectedExecutionException ex) {
+            //the executor is busy, so just let the value expire as normal
+            future.complete(element.getObject());
+            loading.remove(key, future);
+        }
+    }
+
+    /**
+     * gets the values for all the keys, with any missing or expired ones loaded by a single call to the batch
+     * loader. Keys already being loaded by another thread (by this or get(key, loader)) aren't loaded again, but
+     * waited for. Keys with no value are left out of the returned map. If the loader throws an exception, it's
+     * thrown from here and to any other threads waiting for those keys, and nothing is cached for them.
+     */
+    public Map<K,V> getAll(Collection<K> keys, ExpiringCacheBatchLoader<K,V> loader) throws Exception {
+        Map<K,V> ret = new HashMap<>();
+        Map<K, CompletableFuture<V>> ourLoads = new HashMap<>();
+        Map<K, CompletableFuture<V>> otherLoads = new HashMap<>();
+
+        for (K key: keys) {
+            if (ret.containsKey(key)
+                    || ourLoads.containsKey(key)
+                    || otherLoads.containsKey(key)) {
+                continue;
+            }
+
+            ExpiringCacheElement<V> element = getElement(key);
+            if (element != null
+                    && element.getObject() != null) {
+                ret.put(key, element.getObject());
+                continue;
+            }
+
+            CompletableFuture<V> future = new CompletableFuture<>();
+            CompletableFuture<V> existingLoad = loading.putIfAbsent(key, future);
+            if (existingLoad != null) {
+                otherLoads.put(key, existingLoad);
+            } else {
+                ourLoads.put(key, future);
+            }
+        }
+
+        //do our own loads before waiting for anyone else's, so two threads loading overlapping keys can't deadlock
+        if (!ourLoads.isEmpty()) {
+            try {
+                //another thread may have finished loading some of these between our get and putIfAbsent above
+                List<K> toLoad = new ArrayList<>();
+                for (Map.Entry<K, CompletableFuture<V>> entry: ourLoads.entrySet()) {
+                    K key = entry.getKey();
+                    ExpiringCacheElement<V> element = innerMap.get(key);
+                    if (element != null
+                            && !element.isExpired()
+                            && element.getObject() != null) {
+                        ret.put(key, element.getObject());
+                        entry.getValue().complete(element.getObject());
+                    } else {
+                        toLoad.add(key);
+                    }
+                }
+
+                if (!toLoad.isEmpty()) {
+                    Map<K,V> loaded = timeLoad(() -> loader.loadAll(toLoad));
+
+                    for (K key: toLoad) {
+                        V value = loaded == null ? null : loaded.get(key);
+                        if (value != null) {
+                            put(key, value);
+                            ret.put(key, value);
+                        }
+                        ourLoads.get(key).complete(value);
+                    }
+                }
+
+            } catch (Throwable t) {
+                for (CompletableFuture<V> future: ourLoads.values()) {
+                    future.completeExceptionally(t);
+                }
+                throw t;
+
+            } finally {
+                for (Map.Entry<K, CompletableFuture<V>> entry: ourLoads.entrySet()) {
+                    loading.remove(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+
+        for (Map.Entry<K, CompletableFuture<V>> entry: otherLoads.entrySet()) {
+            V value = waitForLoad(entry.getValue());
+            if (value != null) {
+                ret.put(entry.getKey(), value);
+            }
+        }
+
+        return ret;
+    }
+
+    private static <V> V waitForLoad(CompletableFuture<V> future) throws Exception {
+        try {
+            return future.get();
+
+        } catch (ExecutionException ex) {
+            //throw the loader's own exception, rather than the wrapper
+            Throwable cause = ex.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception)cause;
+            } else if (cause instanceof Error) {
+                throw (Error)cause;
+            } else {
+                throw ex;
+            }
+        }
     }
 
     @Override
     public V put(K key, V value) {
-        ExpiringCacheElement<V> existing = innerMap.put(key, new ExpiringCacheElement<V>(value, msDuration));
+        ExpiringCacheExpiryPolicy<K,V> expiryPolicy = this.expiryPolicy;
+        if (expiryPolicy == null) {
+            return put(key, value, msDuration);
+        } else {
+            return put(key, value, expiryPolicy.getTtlMs(key, value));
+        }
+    }
+
+    /**
+     * puts the value in the cache to expire after msTtl, rather than the cache duration
+     */
+    public V put(K key, V value, long msTtl) {
+        sweeper.sweepIfDue();
+
+        ExpiringCacheElement<V> element;
+        if (eviction != null) {
+            element = new ExpiringCacheBoundedElement<V>(key, value, msTtl);
+        } else {
+            element = new ExpiringCacheElement<V>(key, value, msTtl);
+        }
+        weigh(element);
+
+        double refreshFraction = this.refreshFraction;
+        if (refreshFraction > 0) {
+            element.refreshAt = ExpiringCacheElement.saturatedAdd(System.currentTimeMillis(), (long)(msTtl * refreshFraction));
+        }
+
+        ExpiringCacheElement<V> existing = innerMap.put(key, element);
+        sweeper.add(element);
+        if (existing != null) {
+            sweeper.remove(existing);
+        }
+        if (eviction != null) {
+            eviction.recordWrite((ExpiringCacheBoundedElement<?>)element, (ExpiringCacheBoundedElement<?>)existing);
+        }
+
+        //so an older value can't come back from the off-heap tier later
+        ExpiringCacheOffHeapTier<V> offHeapTier = this.offHeapTier;
+        if (offHeapTier != null) {
+            offHeapTier.remove(key);
+        }
+
         if (existing == null
                 || existing.isExpired()) {
             return null;
@@ -89,6 +662,16 @@ public class ExpiringCache<K,V> implements Map<K,V> {
     @Override
     public V remove(Object key) {
         ExpiringCacheElement<V> existing = innerMap.remove(key);
+        if (existing != null) {
+            sweeper.remove(existing);
+            onRemoved(existing);
+        }
+
+        ExpiringCacheOffHeapTier<V> offHeapTier = this.offHeapTier;
+        if (offHeapTier != null) {
+            offHeapTier.remove(key);
+        }
+
         if (existing == null
                 || existing.isExpired()) {
             return null;
@@ -99,12 +682,61 @@ public class ExpiringCache<K,V> implements Map<K,V> {
 
     @Override
     public void putAll(Map<? extends K, ? extends V> m) {
-        throw new RuntimeException("Function not supported in ExpiringCache");
+        for (Map.Entry<? extends K, ? extends V> entry: m.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
     }
 
     @Override
     public void clear() {
         innerMap.clear();
+        sweeper.clear();
+        if (eviction != null) {
+            eviction.clear();
+        }
+
+        ExpiringCacheOffHeapTier<V> offHeapTier = this.offHeapTier;
+        if (offHeapTier != null) {
+            offHeapTier.clear();
+        }
+    }
+
+    private void recordMiss() {
+        ExpiringCacheStatsCounter statsCounter = this.statsCounter;
+        if (statsCounter != null) {
+            statsCounter.recordMiss();
+        }
+    }
+
+    /**
+     * calls the loader, recording how long it took in the stats and metrics
+     */
+    private V load(K key, ExpiringCacheLoader<K,V> loader) throws Exception {
+        return timeLoad(() -> loader.load(key));
+    }
+
+    private <T> T timeLoad(Callable<T> load) throws Exception {
+        ExpiringCacheStatsCounter statsCounter = this.statsCounter;
+        if (statsCounter == null) {
+            return load.call();
+        }
+
+        long startNanos = System.nanoTime();
+        boolean failed = true;
+        try {
+            T ret = load.call();
+            failed = false;
+            return ret;
+
+        } finally {
+            long nanos = System.nanoTime() - startNanos;
+            statsCounter.recordLoad(nanos, failed);
+
+            ExpiringCacheMetrics metrics = this.metrics;
+            if (metrics != null) {
+                metrics.loadFinished(nanos);
+            }
+        }
     }
 
     @Override
@@ -123,25 +755,3 @@ public class ExpiringCache<K,V> implements Map<K,V> {
     }
 
 }
-
-class ExpiringCacheElement<T> {
-    private T object;
-    private long expiry;
-
-    public ExpiringCacheElement(T object, long msLife) {
-        this.object = object;
-        this.expiry = java.lang.System.currentTimeMillis() + msLife;
-    }
-
-    public boolean isExpired() {
-        return java.lang.System.currentTimeMillis() > expiry;
-    }
-
-    public T getObject() {
-        return object;
-    }
-
-    public long getExpiry() {
-        return expiry;
-    }
-}
@@ -0,0 +1,13 @@
+package org.endeavourhealth.common.utility;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * loads the values for many keys missing from an ExpiringCache at once, e.g. with a single database query.
+ * Keys with no value can just be left out of the returned map, and nothing is cached for them.
+ */
+public interface ExpiringCacheBatchLoader<K, V> {
+
+    Map<K, V> loadAll(Collection<K> keys) throws Exception;
+}
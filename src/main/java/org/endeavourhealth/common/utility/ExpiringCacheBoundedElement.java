@@ -0,0 +1,16 @@
+package org.endeavourhealth.common.utility;
+
+/**
+ * element of a size or weight bounded ExpiringCache, with the fields used by ExpiringCacheEviction. These are
+ * only accessed under its lock, apart from weight, which is set before the element is shared.
+ */
+class ExpiringCacheBoundedElement<T> extends ExpiringCacheElement<T> {
+    int weight = 1;
+    byte queue;
+    ExpiringCacheBoundedElement<?> prev;
+    ExpiringCacheBoundedElement<?> next;
+
+    public ExpiringCacheBoundedElement(Object key, T object, long msLife) {
+        super(key, object, msLife);
+    }
+}
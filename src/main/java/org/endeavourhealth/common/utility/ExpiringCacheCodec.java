@@ -0,0 +1,11 @@
+package org.endeavourhealth.common.utility;
+
+/**
+ * converts values to and from bytes, so an ExpiringCache can hold them off the heap or write them to a file
+ */
+public interface ExpiringCacheCodec<T> {
+
+    byte[] encode(T value) throws Exception;
+
+    T decode(byte[] bytes) throws Exception;
+}
@@ -0,0 +1,55 @@
+package org.endeavourhealth.common.utility;
+
+import java.util.Set;
+
+/**
+ * a value in an ExpiringCache or ExpiringSet, with when it expires. Size or weight bounded caches use
+ * ExpiringCacheBoundedElement instead, so unbounded ones don't carry the fields only eviction needs.
+ */
+class ExpiringCacheElement<T> {
+    private Object key;
+    private T object;
+    private long expiry;
+
+    public ExpiringCacheElement(Object key, T object, long msLife) {
+        this.key = key;
+        this.object = object;
+        this.expiry = saturatedAdd(java.lang.System.currentTimeMillis(), msLife);
+    }
+
+    /**
+     * time + ms, clamped to Long.MAX_VALUE or Long.MIN_VALUE rather than overflowing, so a huge
+     * TTL (e.g. Long.MAX_VALUE) means the element never expires, rather than having already expired
+     */
+    static long saturatedAdd(long time, long ms) {
+        long ret = time + ms;
+        //it's only overflowed if both have the same sign and the result has the other one
+        if (((time ^ ret) & (ms ^ ret)) < 0) {
+            return ms > 0 ? Long.MAX_VALUE : Long.MIN_VALUE;
+        }
+        return ret;
+    }
+
+    public boolean isExpired() {
+        return java.lang.System.currentTimeMillis() > expiry;
+    }
+
+    public Object getKey() {
+        return key;
+    }
+
+    public T getObject() {
+        return object;
+    }
+
+    public long getExpiry() {
+        return expiry;
+    }
+
+    //the sweeper bucket holding the element, so it can be taken out when replaced or removed
+    volatile Set<ExpiringCacheElement<?>> sweeperBucket;
+    volatile boolean sweeperRemoved;
+
+    //when to reload the value in the background, if the cache is using refresh-ahead
+    volatile long refreshAt = Long.MAX_VALUE;
+}
@@ -0,0 +1,434 @@
+package org.endeavourhealth.common.utility;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * keeps a size or weight bounded ExpiringCache within its maximum, using W-TinyLFU eviction.
+ *
+ * New entries go into a small LRU "window" (1% of the maximum). When they fall out of the window, they're only
+ * kept if they've been used more often than the entry that would have to be evicted to make room for them, using the
+ * approximate counts from a frequency sketch. The main space is a segmented LRU, where entries start on probation and
+ * move to the protected segment (80% of the main space) when read again. This keeps a high hit rate for both recency
+ * and frequency biased access, and stops one-off scans from flushing out the popular entries.
+ *
+ * The cache's map is the only thing touched on reads and writes. What was read or written is recorded in buffers, which
+ * are applied to the LRU lists under a lock by whichever thread gets to it, so reads never wait for the lock. The read
+ * buffers are striped and lossy (if one is full, the read just isn't recorded), while writes are always applied.
+ */
+class ExpiringCacheEviction {
+
+    private static final byte NEW = 0;
+    private static final byte WINDOW = 1;
+    private static final byte PROBATION = 2;
+    private static final byte PROTECTED = 3;
+    private static final byte DEAD = 4;
+
+    private static final double WINDOW_PERCENT = 0.01;
+    private static final double PROTECTED_PERCENT = 0.8;
+
+    private final Map<?, ? extends ExpiringCacheElement<?>> map;
+    private final long maximum;
+    private final long windowMaximum;
+    private final long protectedMaximum;
+    private final ExpiringCacheFrequencySketch sketch;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ReadBuffer readBuffer = new ReadBuffer();
+    private final Queue<Runnable> writeBuffer = new ConcurrentLinkedQueue<>();
+    private final LongAdder evictionCount = new LongAdder();
+    private final Consumer<ExpiringCacheElement<?>> evictionListener;
+
+    //only accessed under the lock
+    private final ElementDeque window = new ElementDeque();
+    private final ElementDeque probation = new ElementDeque();
+    private final ElementDeque protectedSegment = new ElementDeque();
+    private long weightedSize;
+    private long windowWeight;
+    private long protectedWeight;
+    private long entryCount;
+    private List<ExpiringCacheBoundedElement<?>> evicted = null;
+
+    ExpiringCacheEviction(Map<?, ? extends ExpiringCacheElement<?>> map, long maximum, boolean weighted) {
+        this(map, maximum, weighted, null);
+    }
+
+    /**
+     * the eviction listener, if not null, is told about every element evicted from the map. It's called
+     * after the lock is released, so it can do slow things (e.g. serialising the value) without holding up others.
+     */
+    ExpiringCacheEviction(Map<?, ? extends ExpiringCacheElement<?>> map, long maximum, boolean weighted, Consumer<ExpiringCacheElement<?>> evictionListener) {
+        if (maximum < 0) {
+            throw new IllegalArgumentException("Maximum must not be negative");
+        }
+
+        this.map = map;
+        this.maximum = maximum;
+        this.evictionListener = evictionListener;
+        this.windowMaximum = Math.max(1, (long)(maximum * WINDOW_PERCENT));
+        this.protectedMaximum = (long)((maximum - windowMaximum) * PROTECTED_PERCENT);
+
+        this.sketch = new ExpiringCacheFrequencySketch();
+    }
+
+    long getEvictionCount() {
+        return evictionCount.sum();
+    }
+
+    void recordRead(ExpiringCacheBoundedElement<?> element) {
+        if (!readBuffer.offer(element)) {
+            drainBuffers();
+        }
+    }
+
+    /**
+     * replaced is the element that the new one replaced in the map, if any
+     */
+    void recordWrite(ExpiringCacheBoundedElement<?> element, ExpiringCacheBoundedElement<?> replaced) {
+        writeBuffer.add(() -> {
+            if (replaced != null) {
+                onRemove(replaced);
+            }
+            onAdd(element);
+        });
+        drainBuffers();
+    }
+
+    void recordRemoval(ExpiringCacheBoundedElement<?> element) {
+        writeBuffer.add(() -> onRemove(element));
+        drainBuffers();
+    }
+
+    void clear() {
+        lock.lock();
+        try {
+            readBuffer.drain(e -> {});
+            writeBuffer.clear();
+
+            for (ElementDeque deque: new ElementDeque[]{window, probation, protectedSegment}) {
+                ExpiringCacheBoundedElement<?> element;
+                while ((element = deque.pollFirst()) != null) {
+                    element.queue = DEAD;
+                }
+            }
+            weightedSize = 0;
+            entryCount = 0;
+            windowWeight = 0;
+            protectedWeight = 0;
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void drainBuffers() {
+        while (true) {
+            //if another thread has the lock, it will apply what we've just added
+            if (!lock.tryLock()) {
+                return;
+            }
+
+            List<ExpiringCacheBoundedElement<?>> justEvicted;
+            try {
+                readBuffer.drain(e -> onRead(e));
+
+                Runnable task;
+                while ((task = writeBuffer.poll()) != null) {
+                    task.run();
+                }
+
+                evict();
+
+                justEvicted = evicted;
+                evicted = null;
+
+            } finally {
+                lock.unlock();
+            }
+
+            if (justEvicted != null) {
+                for (ExpiringCacheBoundedElement<?> element: justEvicted) {
+                    evictionListener.accept(element);
+                }
+            }
+
+            //if a write was added after we finished but before we released the lock, the thread that added it
+            //will have failed to get the lock, so we need to go round again
+            if (writeBuffer.isEmpty()) {
+                return;
+            }
+        }
+    }
+
+    private void onAdd(ExpiringCacheBoundedElement<?> element) {
+        //if the element was removed or replaced before we got its add, there's nothing to do
+        if (element.queue != NEW) {
+            return;
+        }
+
+        element.queue = WINDOW;
+        window.addLast(element);
+        entryCount++;
+        sketch.ensureCapacity(entryCount);
+        weightedSize += element.weight;
+        windowWeight += element.weight;
+        sketch.increment(element.getKey());
+    }
+
+    private void onRead(ExpiringCacheBoundedElement<?> element) {
+        sketch.increment(element.getKey());
+
+        switch (element.queue) {
+            case WINDOW:
+                window.moveToLast(element);
+                break;
+
+            case PROBATION:
+                //a second use promotes it into the protected segment, which may push others back onto probation
+                probation.remove(element);
+                element.queue = PROTECTED;
+                protectedSegment.addLast(element);
+                protectedWeight += element.weight;
+
+                while (protectedWeight > protectedMaximum) {
+                    ExpiringCacheBoundedElement<?> demoted = protectedSegment.pollFirst();
+                    protectedWeight -= demoted.weight;
+                    demoted.queue = PROBATION;
+                    probation.addLast(demoted);
+                }
+                break;
+
+            case PROTECTED:
+                protectedSegment.moveToLast(element);
+                break;
+
+            default:
+                //not added yet or already removed
+        }
+    }
+
+    private void onRemove(ExpiringCacheBoundedElement<?> element) {
+        unlink(element);
+    }
+
+    private void unlink(ExpiringCacheBoundedElement<?> element) {
+        switch (element.queue) {
+            case WINDOW:
+                window.remove(element);
+                windowWeight -= element.weight;
+                weightedSize -= element.weight;
+                break;
+
+            case PROBATION:
+                probation.remove(element);
+                weightedSize -= element.weight;
+                break;
+
+            case PROTECTED:
+                protectedSegment.remove(element);
+                protectedWeight -= element.weight;
+                weightedSize -= element.weight;
+                break;
+
+            default:
+                //if NEW, marking it as DEAD means it won't be added when its add is applied
+                element.queue = DEAD;
+                return;
+        }
+
+        entryCount--;
+        element.queue = DEAD;
+    }
+
+    private void evict() {
+
+        //anything that's fallen out of the window is a candidate to go into the main space
+        int candidates = 0;
+        while (windowWeight > windowMaximum) {
+            ExpiringCacheBoundedElement<?> element = window.pollFirst();
+            windowWeight -= element.weight;
+            element.queue = PROBATION;
+            probation.addLast(element);
+            candidates ++;
+        }
+
+        //the candidates are at the end of the probation list, so compete against the entry at the front, with the one
+        //used less often being evicted. Once the candidates are done, evict from probation, protected, then window.
+        while (weightedSize > maximum) {
+
+            ExpiringCacheBoundedElement<?> victim = probation.peekFirst();
+            ExpiringCacheBoundedElement<?> candidate = candidates > 0 ? probation.peekLast() : null;
+
+            if (victim == null) {
+                victim = protectedSegment.peekFirst();
+            }
+            if (victim == null) {
+                victim = window.peekFirst();
+            }
+            if (victim == null) {
+                return;
+            }
+
+            if (candidate == null
+                    || candidate == victim) {
+                evictElement(victim);
+
+            } else if (sketch.frequency(candidate.getKey()) > sketch.frequency(victim.getKey())) {
+                evictElement(victim);
+
+            } else {
+                evictElement(candidate);
+                candidates --;
+            }
+        }
+    }
+
+    private void evictElement(ExpiringCacheBoundedElement<?> element) {
+        unlink(element);
+
+        //if it's been replaced in the map in the meantime, this won't remove the replacement
+        if (map.remove(element.getKey(), element)) {
+            evictionCount.increment();
+
+            if (evictionListener != null) {
+                if (evicted == null) {
+                    evicted = new ArrayList<>();
+                }
+                evicted.add(element);
+            }
+        }
+    }
+
+    /**
+     * intrusive doubly linked list, using the prev and next fields of the elements themselves
+     */
+    static class ElementDeque {
+        private ExpiringCacheBoundedElement<?> first;
+        private ExpiringCacheBoundedElement<?> last;
+
+        ExpiringCacheBoundedElement<?> peekFirst() {
+            return first;
+        }
+
+        ExpiringCacheBoundedElement<?> peekLast() {
+            return last;
+        }
+
+        void addLast(ExpiringCacheBoundedElement<?> element) {
+            element.prev = last;
+            element.next = null;
+            if (last == null) {
+                first = element;
+            } else {
+                last.next = element;
+            }
+            last = element;
+        }
+
+        ExpiringCacheBoundedElement<?> pollFirst() {
+            ExpiringCacheBoundedElement<?> ret = first;
+            if (ret != null) {
+                remove(ret);
+            }
+            return ret;
+        }
+
+        void moveToLast(ExpiringCacheBoundedElement<?> element) {
+            if (element != last) {
+                remove(element);
+                addLast(element);
+            }
+        }
+
+        void remove(ExpiringCacheBoundedElement<?> element) {
+            ExpiringCacheBoundedElement<?> prev = element.prev;
+            ExpiringCacheBoundedElement<?> next = element.next;
+
+            if (prev == null) {
+                first = next;
+            } else {
+                prev.next = next;
+            }
+
+            if (next == null) {
+                last = prev;
+            } else {
+                next.prev = prev;
+            }
+
+            element.prev = null;
+            element.next = null;
+        }
+    }
+
+    /**
+     * striped, lossy buffer of reads. Each thread is mapped to a stripe by its ID, and each stripe is a small ring
+     * that's written to with a single CAS. If the ring is full, the read is dropped and the caller should drain.
+     */
+    static class ReadBuffer {
+        private static final int STRIPES = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()) * 4);
+        private static final int RING_SIZE = 16;
+        private static final int RING_MASK = RING_SIZE - 1;
+
+        private final AtomicReferenceArray<ExpiringCacheBoundedElement<?>>[] rings;
+        private final AtomicLong[] writeCounts;
+        private final AtomicLongArray readCounts; //only written under the eviction lock
+
+        @SuppressWarnings("unchecked")
+        ReadBuffer() {
+            rings = new AtomicReferenceArray[STRIPES];
+            writeCounts = new AtomicLong[STRIPES];
+            readCounts = new AtomicLongArray(STRIPES);
+            for (int i=0; i<STRIPES; i++) {
+                rings[i] = new AtomicReferenceArray<>(RING_SIZE);
+                writeCounts[i] = new AtomicLong();
+            }
+        }
+
+        boolean offer(ExpiringCacheBoundedElement<?> element) {
+            int stripe = (int)(Thread.currentThread().getId() & (STRIPES - 1));
+            AtomicLong writeCount = writeCounts[stripe];
+
+            long count = writeCount.get();
+            if (count - readCounts.get(stripe) >= RING_SIZE) {
+                return false;
+            }
+
+            //if another thread got in first, just drop this read, as it's only used as a hint
+            if (writeCount.compareAndSet(count, count + 1)) {
+                rings[stripe].lazySet((int)(count & RING_MASK), element);
+            }
+            return true;
+        }
+
+        void drain(Consumer<ExpiringCacheBoundedElement<?>> consumer) {
+            for (int i=0; i<STRIPES; i++) {
+                AtomicReferenceArray<ExpiringCacheBoundedElement<?>> ring = rings[i];
+                long writeCount = writeCounts[i].get();
+
+                long readCount = readCounts.get(i);
+                while (readCount < writeCount) {
+                    int index = (int)(readCount & RING_MASK);
+                    ExpiringCacheBoundedElement<?> element = ring.getAndSet(index, null);
+
+                    //the writer has reserved the slot but not filled it in yet, so pick it up next time
+                    if (element == null) {
+                        break;
+                    }
+
+                    consumer.accept(element);
+                    readCount ++;
+                }
+                readCounts.lazySet(i, readCount);
+            }
+        }
+    }
+}
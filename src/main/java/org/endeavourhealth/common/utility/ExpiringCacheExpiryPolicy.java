@@ -0,0 +1,10 @@
+package org.endeavourhealth.common.utility;
+
+/**
+ * works out how long an entry should live in an ExpiringCache, e.g. so that negative lookups can be cached
+ * for less time than positive ones
+ */
+public interface ExpiringCacheExpiryPolicy<K, V> {
+
+    long getTtlMs(K key, V value);
+}
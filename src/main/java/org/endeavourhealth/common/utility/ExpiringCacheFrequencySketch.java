@@ -0,0 +1,115 @@
+package org.endeavourhealth.common.utility;
+
+/**
+ * approximate count of how often keys have been used recently, for the TinyLFU admission in ExpiringCacheEviction.
+ * This is a count-min sketch of 4-bit counters, sixteen to a long. Each key increments one counter in each of four
+ * longs, and its frequency is the smallest of those four counters. Once enough increments have been recorded, all counters
+ * are halved, so the counts reflect recent use rather than all time. The table starts small and is grown (losing the
+ * counts so far) as the number of entries in the cache grows, so it's sized by entries rather than the maximum, which
+ * for a weighted cache may be in bytes. Not thread safe, so must only be used under the eviction lock.
+ */
+class ExpiringCacheFrequencySketch {
+
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final long ONE_MASK = 0x1111111111111111L;
+    private static final int MIN_TABLE_SIZE = 16;
+    private static final int MAX_TABLE_SIZE = 1 << 24;
+
+    private long[] table;
+    private int tableMask;
+    private int sampleSize;
+    private int size;
+
+    ExpiringCacheFrequencySketch() {
+        resize(MIN_TABLE_SIZE);
+    }
+
+    /**
+     * grows the table if it's too small for the given number of entries
+     */
+    void ensureCapacity(long entries) {
+        if (entries <= table.length
+                || table.length >= MAX_TABLE_SIZE) {
+            return;
+        }
+        resize((int)Math.min(MAX_TABLE_SIZE, entries * 2));
+    }
+
+    private void resize(int tableSize) {
+        tableSize = Integer.highestOneBit(tableSize - 1) << 1; //round up to a power of two
+
+        this.table = new long[tableSize];
+        this.tableMask = tableSize - 1;
+        this.sampleSize = 10 * tableSize;
+        this.size = 0;
+    }
+
+    int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+
+        int ret = Integer.MAX_VALUE;
+        for (int i=0; i<4; i++) {
+            int index = indexOf(hash, i);
+            int count = (int)((table[index] >>> ((start + i) << 2)) & 0xfL);
+            ret = Math.min(ret, count);
+        }
+        return ret;
+    }
+
+    void increment(Object key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+
+        boolean added = false;
+        for (int i=0; i<4; i++) {
+            int index = indexOf(hash, i);
+            added |= incrementAt(index, start + i);
+        }
+
+        if (added
+                && ++size >= sampleSize) {
+            reset();
+        }
+    }
+
+    private boolean incrementAt(int index, int counter) {
+        int offset = counter << 2;
+        long mask = 0xfL << offset;
+
+        //counters stop at 15
+        if ((table[index] & mask) == mask) {
+            return false;
+        }
+
+        table[index] += 1L << offset;
+        return true;
+    }
+
+    /**
+     * halves every counter, so older use counts for less
+     */
+    private void reset() {
+        int odd = 0;
+        for (int i=0; i<table.length; i++) {
+            odd += Long.bitCount(table[i] & ONE_MASK);
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        size = (size - (odd >>> 2)) >>> 1;
+    }
+
+    private int indexOf(int hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return ((int)h) & tableMask;
+    }
+
+    private static int spread(int h) {
+        //mix the bits, so keys with poor hash codes (e.g. small Integers) are spread over the table
+        h = ((h >>> 16) ^ h) * 0x45d9f3b;
+        h = ((h >>> 16) ^ h) * 0x45d9f3b;
+        return (h >>> 16) ^ h;
+    }
+}
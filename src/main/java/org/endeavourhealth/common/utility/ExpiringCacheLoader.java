@@ -0,0 +1,10 @@
+package org.endeavourhealth.common.utility;
+
+/**
+ * loads the value for a key that is missing from, or has expired in, an ExpiringCache. If null is
+ * returned, nothing is cached.
+ */
+public interface ExpiringCacheLoader<K, V> {
+
+    V load(K key) throws Exception;
+}
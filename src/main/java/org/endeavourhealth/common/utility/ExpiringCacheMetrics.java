@@ -0,0 +1,53 @@
+package org.endeavourhealth.common.utility;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * metrics for a single ExpiringCache, registered with the MetricsHelper registry under "ExpiringCache.<cacheName>".
+ * The counts are gauges read from the cache's stats when the registry is reported, so nothing extra is done on
+ * each get or put. Only the load timer is updated as the cache is used, and loads are slow anyway.
+ */
+class ExpiringCacheMetrics {
+
+    private final MetricRegistry registry;
+    private final String prefix;
+    private final Timer loadTimer;
+
+    ExpiringCacheMetrics(String cacheName, Supplier<ExpiringCacheStats> stats) {
+        this.registry = MetricsHelper.getRegistry();
+        this.prefix = MetricRegistry.name("ExpiringCache", cacheName);
+
+        this.loadTimer = registry.timer(MetricRegistry.name(prefix, "Load Time"));
+
+        registerGauge("Hits", () -> stats.get().getHitCount());
+        registerGauge("Misses", () -> stats.get().getMissCount());
+        registerGauge("Expired On Read", () -> stats.get().getExpiredCount());
+        registerGauge("Loads", () -> stats.get().getLoadSuccessCount());
+        registerGauge("Load Failures", () -> stats.get().getLoadFailureCount());
+        registerGauge("Evictions", () -> stats.get().getEvictionCount());
+        registerGauge("Estimated Size", () -> stats.get().getEstimatedSize());
+        registerGauge("Hit Rate", () -> stats.get().getHitRate());
+        registerGauge("Off-Heap Bytes Used", () -> stats.get().getOffHeapBytesUsed());
+        registerGauge("Off-Heap Overwritten", () -> stats.get().getOffHeapOverwrittenCount());
+    }
+
+    private void registerGauge(String name, Gauge<?> gauge) {
+        //remove any existing one, e.g. from a previous cache with the same name
+        String fullName = MetricRegistry.name(prefix, name);
+        registry.remove(fullName);
+        registry.register(fullName, gauge);
+    }
+
+    void loadFinished(long nanos) {
+        loadTimer.update(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    void unregister() {
+        registry.removeMatching((name, metric) -> name.startsWith(prefix + "."));
+    }
+}
@@ -0,0 +1,241 @@
+package org.endeavourhealth.common.utility;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * second tier for a bounded ExpiringCache, holding encoded values that have been evicted from the heap in a
+ * single direct ByteBuffer, so large caches don't fill the old generation and lengthen GC pauses.
+ *
+ * The buffer is used as a ring. Values are written one after the other and, once the end is reached, writing
+ * starts again at the beginning, overwriting the oldest values. So there's no fragmentation or free space to
+ * manage, and it never holds more than its capacity. Only the small index entries are on the heap.
+ *
+ * Writes take the write lock. Reads copy the bytes out under an optimistic read of the same lock and only take
+ * the read lock if a write happened at the same time, so reads don't normally block each other.
+ */
+class ExpiringCacheOffHeapTier<V> {
+    private static final Logger LOG = LoggerFactory.getLogger(ExpiringCacheOffHeapTier.class);
+
+    private final ExpiringCacheCodec<V> codec;
+    private final ByteBuffer buffer;
+    private final Map<Object, Entry> index = new ConcurrentHashMap<>();
+    private final StampedLock lock = new StampedLock();
+    private final LongAdder overwrittenCount = new LongAdder();
+
+    //bytes of the entries in the index, i.e. those that can still be read. An entry leaves the index exactly once
+    //(when removed, replaced, overwritten or cleared), which is when its bytes are taken off
+    private final LongAdder liveBytes = new LongAdder();
+
+    //only accessed under the write lock
+    private final ArrayDeque<Entry> writeOrder = new ArrayDeque<>();
+    private int writePosition = 0;
+
+    ExpiringCacheOffHeapTier(long maxBytes, ExpiringCacheCodec<V> codec) {
+        if (maxBytes <= 0
+                || maxBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Off-heap size must be between 1 and " + Integer.MAX_VALUE + " bytes");
+        }
+        this.buffer = ByteBuffer.allocateDirect((int)maxBytes);
+        this.codec = codec;
+    }
+
+    /**
+     * stores the encoded element, replacing anything already there for its key. If it's bigger than the whole
+     * buffer or can't be encoded, it's not stored.
+     *
+     * If the key is in the heap map once the element is stored (i.e. a newer value was put while the old one was
+     * being evicted), it's removed again. A put to the cache adds to its map before removing the key from here,
+     * so whichever order the two happen in, the stale value can't be left in this tier.
+     */
+    void put(ExpiringCacheElement<V> element, Map<?, ?> heapMap) {
+        Object key = element.getKey();
+        long expiry = element.getExpiry();
+
+        byte[] bytes;
+        try {
+            bytes = codec.encode(element.getObject());
+        } catch (Exception ex) {
+            LOG.warn("Failed to encode cached value for " + key + " to move it off-heap", ex);
+            remove(key);
+            return;
+        }
+
+        int length = bytes.length;
+        if (length > buffer.capacity()) {
+            remove(key);
+            return;
+        }
+
+        long stamp = lock.writeLock();
+        try {
+            //if it doesn't fit before the end, everything after the write position is dropped and we go back to the start
+            if (writePosition + length > buffer.capacity()) {
+                while (!writeOrder.isEmpty()
+                        && writeOrder.peekFirst().offset >= writePosition) {
+                    discard(writeOrder.pollFirst());
+                }
+                writePosition = 0;
+            }
+
+            //the oldest entries are the ones just after the write position, so drop any we're about to overwrite
+            while (!writeOrder.isEmpty()
+                    && writeOrder.peekFirst().offset >= writePosition
+                    && writeOrder.peekFirst().offset < writePosition + length) {
+                discard(writeOrder.pollFirst());
+            }
+
+            ByteBuffer target = buffer.duplicate();
+            target.position(writePosition);
+            target.put(bytes);
+
+            Entry entry = new Entry(key, writePosition, length, expiry);
+            writeOrder.addLast(entry);
+            writePosition += length;
+
+            liveBytes.add(length);
+            Entry replaced = index.put(key, entry);
+            if (replaced != null) {
+                replaced.live = false;
+                liveBytes.add(-replaced.length);
+            }
+
+            if (heapMap.containsKey(key)) {
+                remove(key, entry);
+            }
+
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * returns the decoded element for the key, or null if not present or expired
+     */
+    ExpiringCacheElement<V> get(Object key) {
+        Entry entry = index.get(key);
+        if (entry == null) {
+            return null;
+        }
+
+        if (System.currentTimeMillis() > entry.expiry) {
+            remove(key, entry);
+            return null;
+        }
+
+        byte[] bytes = new byte[entry.length];
+
+        long stamp = lock.tryOptimisticRead();
+        boolean live = entry.live;
+        copy(entry, bytes);
+
+        if (!lock.validate(stamp)) {
+            //a write happened while we were copying, so do it again properly
+            stamp = lock.readLock();
+            try {
+                live = entry.live;
+                copy(entry, bytes);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        if (!live) {
+            return null;
+        }
+
+        try {
+            V value = codec.decode(bytes);
+            return new ExpiringCacheBoundedElement<>(key, value, entry.expiry - System.currentTimeMillis());
+
+        } catch (Exception ex) {
+            LOG.warn("Failed to decode off-heap cached value for " + key, ex);
+            remove(key, entry);
+            return null;
+        }
+    }
+
+    private void copy(Entry entry, byte[] bytes) {
+        ByteBuffer source = buffer.duplicate();
+        source.position(entry.offset);
+        source.get(bytes);
+    }
+
+    void remove(Object key) {
+        Entry entry = index.get(key);
+        if (entry != null) {
+            remove(key, entry);
+        }
+    }
+
+    private void remove(Object key, Entry entry) {
+        //the space isn't reused until the write position comes round to it again
+        if (index.remove(key, entry)) {
+            entry.live = false;
+            liveBytes.add(-entry.length);
+        }
+    }
+
+    void clear() {
+        long stamp = lock.writeLock();
+        try {
+            //everything in the index is also in the write order, so this takes each out of the index (unless
+            //it's being removed at the same time) and off the live bytes
+            for (Entry entry: writeOrder) {
+                remove(entry.key, entry);
+            }
+            writeOrder.clear();
+            writePosition = 0;
+
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * the number of entries that were dropped to make room for newer ones before they'd expired
+     */
+    long getOverwrittenCount() {
+        return overwrittenCount.sum();
+    }
+
+    /**
+     * the bytes taken by entries that can still be read. Space left by entries that have been removed or replaced
+     * isn't counted, even though it's not reused until the write position comes round to it again.
+     */
+    long getBytesUsed() {
+        return liveBytes.sum();
+    }
+
+    private void discard(Entry entry) {
+        if (index.remove(entry.key, entry)) {
+            liveBytes.add(-entry.length);
+            if (System.currentTimeMillis() <= entry.expiry) {
+                overwrittenCount.increment();
+            }
+        }
+        entry.live = false;
+    }
+
+    static class Entry {
+        private final Object key;
+        private final int offset;
+        private final int length;
+        private final long expiry;
+        private volatile boolean live = true;
+
+        Entry(Object key, int offset, int length, long expiry) {
+            this.key = key;
+            this.offset = offset;
+            this.length = length;
+            this.expiry = expiry;
+        }
+    }
+}
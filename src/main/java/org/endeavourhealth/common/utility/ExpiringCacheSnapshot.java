@@ -0,0 +1,276 @@
+package org.endeavourhealth.common.utility;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * writes the entries of an ExpiringCache to a file and reads them back, so a restarted service doesn't start
+ * with an empty cache. The format is a header (magic number, version and the time it was written) followed by
+ * each entry as its remaining time to live, then the length and bytes of the encoded key and value, ending
+ * with a remaining time of -1.
+ *
+ * When restoring, the file is memory-mapped and only the keys are decoded up front. Each value is decoded from the
+ * mapped file the first time it's read from the cache, so a big snapshot doesn't hold up startup.
+ */
+class ExpiringCacheSnapshot {
+    private static final Logger LOG = LoggerFactory.getLogger(ExpiringCacheSnapshot.class);
+
+    private static final int MAGIC = 0x45584331; //"EXC1"
+    private static final int VERSION = 1;
+    private static final long END_MARKER = -1;
+
+    /**
+     * writes the unexpired elements to the file, replacing it atomically once complete. Returns the number written.
+     */
+    static <K, V> int save(Map<K, ExpiringCacheElement<V>> map, File file,
+                           ExpiringCacheCodec<K> keyCodec, ExpiringCacheCodec<V> valueCodec) throws Exception {
+
+        File tempFile = new File(file.getAbsolutePath() + ".tmp");
+        int count = 0;
+        boolean saved = false;
+
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+                long now = System.currentTimeMillis();
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(now);
+
+                for (Map.Entry<K, ExpiringCacheElement<V>> entry: map.entrySet()) {
+                    ExpiringCacheElement<V> element = entry.getValue();
+                    long remainingMs = element.getExpiry() - now;
+                    V value = element.getObject();
+                    if (remainingMs <= 0
+                            || value == null) {
+                        continue;
+                    }
+
+                    byte[] keyBytes = keyCodec.encode(entry.getKey());
+                    byte[] valueBytes = valueCodec.encode(value);
+
+                    out.writeLong(remainingMs);
+                    out.writeInt(keyBytes.length);
+                    out.write(keyBytes);
+                    out.writeInt(valueBytes.length);
+                    out.write(valueBytes);
+                    count++;
+                }
+
+                out.writeLong(END_MARKER);
+            }
+
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            saved = true;
+
+        } finally {
+            //don't leave a partly written file behind if the encoding or writing failed
+            if (!saved) {
+                tempFile.delete();
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * reads the file, passing each element that hasn't expired to the restorer. The time the service was down
+     * counts against each element's time to live. If lazy is true, the values are only decoded when first used,
+     * otherwise they're all decoded now. If bounded is true, the elements are created for a size or weight
+     * bounded cache. Returns the number restored.
+     */
+    static <K, V> int load(File file, ExpiringCacheCodec<K> keyCodec, ExpiringCacheCodec<V> valueCodec,
+                           boolean lazy, boolean bounded, Consumer<ExpiringCacheElement<V>> restorer) throws Exception {
+
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot " + file + " is bigger than 2GB");
+            }
+            //the mapping stays valid after the channel is closed
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        if (buffer.remaining() < 16
+                || buffer.getInt() != MAGIC) {
+            throw new IOException(file + " is not a cache snapshot");
+        }
+        int version = buffer.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported cache snapshot version " + version + " in " + file);
+        }
+        long savedAt = buffer.getLong();
+        long downtimeMs = System.currentTimeMillis() - savedAt;
+
+        //nothing is restored until the whole file has been read, so a truncated or corrupt one restores nothing
+        List<ExpiringCacheElement<V>> elements = new ArrayList<>();
+        while (true) {
+            if (buffer.remaining() < 8) {
+                throw corrupt(file);
+            }
+            long remainingMs = buffer.getLong();
+            if (remainingMs == END_MARKER) {
+                break;
+            }
+            //only entries with some time left are saved
+            if (remainingMs <= 0) {
+                throw corrupt(file);
+            }
+
+            byte[] keyBytes = new byte[readLength(buffer, file)];
+            buffer.get(keyBytes);
+
+            int valueLength = readLength(buffer, file);
+            int valueOffset = buffer.position();
+            buffer.position(valueOffset + valueLength);
+
+            remainingMs -= downtimeMs;
+            if (remainingMs <= 0) {
+                continue;
+            }
+
+            K key = keyCodec.decode(keyBytes);
+            ExpiringCacheElement<V> element;
+            if (lazy) {
+                LazyValue<V> value = new LazyValue<>(buffer, valueOffset, valueLength, valueCodec);
+                if (bounded) {
+                    element = new LazyBoundedElement<>(key, remainingMs, value);
+                } else {
+                    element = new LazyElement<>(key, remainingMs, value);
+                }
+            } else {
+                byte[] valueBytes = new byte[valueLength];
+                ByteBuffer source = buffer.duplicate();
+                source.position(valueOffset);
+                source.get(valueBytes);
+                V value = valueCodec.decode(valueBytes);
+                if (bounded) {
+                    element = new ExpiringCacheBoundedElement<>(key, value, remainingMs);
+                } else {
+                    element = new ExpiringCacheElement<>(key, value, remainingMs);
+                }
+            }
+
+            elements.add(element);
+        }
+
+        for (ExpiringCacheElement<V> element: elements) {
+            restorer.accept(element);
+        }
+        return elements.size();
+    }
+
+    /**
+     * reads the length of a key or value, checking there are that many bytes left in the file
+     */
+    private static int readLength(ByteBuffer buffer, File file) throws IOException {
+        if (buffer.remaining() < 4) {
+            throw corrupt(file);
+        }
+        int length = buffer.getInt();
+        if (length < 0
+                || length > buffer.remaining()) {
+            throw corrupt(file);
+        }
+        return length;
+    }
+
+    private static IOException corrupt(File file) {
+        return new IOException("Cache snapshot " + file + " is truncated or corrupt");
+    }
+
+    /**
+     * element whose value is decoded from the mapped snapshot file the first time it's needed
+     */
+    static class LazyElement<V> extends ExpiringCacheElement<V> {
+        private final LazyValue<V> value;
+
+        LazyElement(Object key, long msLife, LazyValue<V> value) {
+            super(key, null, msLife);
+            this.value = value;
+        }
+
+        @Override
+        public V getObject() {
+            return value.get(getKey());
+        }
+    }
+
+    /**
+     * the same as LazyElement, for size or weight bounded caches
+     */
+    static class LazyBoundedElement<V> extends ExpiringCacheBoundedElement<V> {
+        private final LazyValue<V> value;
+
+        LazyBoundedElement(Object key, long msLife, LazyValue<V> value) {
+            super(key, null, msLife);
+            this.value = value;
+        }
+
+        @Override
+        public V getObject() {
+            return value.get(getKey());
+        }
+    }
+
+    /**
+     * value held as its encoded bytes in the mapped snapshot file, decoded the first time it's needed
+     */
+    static class LazyValue<V> {
+        private ByteBuffer buffer;
+        private final int offset;
+        private final int length;
+        private final ExpiringCacheCodec<V> codec;
+        private volatile V decoded = null;
+
+        LazyValue(ByteBuffer buffer, int offset, int length, ExpiringCacheCodec<V> codec) {
+            this.buffer = buffer;
+            this.offset = offset;
+            this.length = length;
+            this.codec = codec;
+        }
+
+        V get(Object key) {
+            V ret = decoded;
+            if (ret != null) {
+                return ret;
+            }
+
+            synchronized (this) {
+                if (decoded == null
+                        && buffer != null) {
+                    try {
+                        byte[] bytes = new byte[length];
+                        ByteBuffer source = buffer.duplicate();
+                        source.position(offset);
+                        source.get(bytes);
+                        decoded = codec.decode(bytes);
+
+                    } catch (Exception ex) {
+                        //treat it as if it's not in the cache, rather than failing the read
+                        LOG.warn("Failed to decode cached value for " + key + " from snapshot", ex);
+                    }
+
+                    //once decoded (or failed), we don't need the mapped file any more
+                    buffer = null;
+                }
+                return decoded;
+            }
+        }
+    }
+}
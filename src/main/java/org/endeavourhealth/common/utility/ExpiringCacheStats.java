@@ -0,0 +1,132 @@
+package org.endeavourhealth.common.utility;
+
+/**
+ * snapshot of the statistics of an ExpiringCache at the time getStats() was called
+ */
+public class ExpiringCacheStats {
+    private long hitCount;
+    private long missCount;
+    private long expiredCount;
+    private long loadSuccessCount;
+    private long loadFailureCount;
+    private long totalLoadNanos;
+    private long evictionCount;
+    private long estimatedSize;
+    private long offHeapBytesUsed;
+    private long offHeapOverwrittenCount;
+
+    public ExpiringCacheStats(long hitCount, long missCount, long expiredCount, long loadSuccessCount, long loadFailureCount,
+                              long totalLoadNanos, long evictionCount, long estimatedSize,
+                              long offHeapBytesUsed, long offHeapOverwrittenCount) {
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.expiredCount = expiredCount;
+        this.loadSuccessCount = loadSuccessCount;
+        this.loadFailureCount = loadFailureCount;
+        this.totalLoadNanos = totalLoadNanos;
+        this.evictionCount = evictionCount;
+        this.estimatedSize = estimatedSize;
+        this.offHeapBytesUsed = offHeapBytesUsed;
+        this.offHeapOverwrittenCount = offHeapOverwrittenCount;
+    }
+
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * all misses, including those where the entry was found but had expired
+     */
+    public long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * misses where the entry was found but had expired
+     */
+    public long getExpiredCount() {
+        return expiredCount;
+    }
+
+    public long getLoadSuccessCount() {
+        return loadSuccessCount;
+    }
+
+    public long getLoadFailureCount() {
+        return loadFailureCount;
+    }
+
+    public long getLoadCount() {
+        return loadSuccessCount + loadFailureCount;
+    }
+
+    public long getTotalLoadNanos() {
+        return totalLoadNanos;
+    }
+
+    /**
+     * returns the average time taken by the loader, or 0 if nothing has been loaded
+     */
+    public double getAverageLoadMs() {
+        long loads = getLoadCount();
+        if (loads == 0) {
+            return 0d;
+        } else {
+            return (double)totalLoadNanos / (double)loads / 1000000d;
+        }
+    }
+
+    /**
+     * entries removed to keep the cache within its maximum size or weight (not those removed because they expired)
+     */
+    public long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * the number of entries in the cache, including any that have expired but not been removed yet
+     */
+    public long getEstimatedSize() {
+        return estimatedSize;
+    }
+
+    /**
+     * the bytes of the off-heap tier's buffer holding entries that can still be read, or 0 if there's no off-heap
+     * tier. Space left by removed or replaced entries isn't counted, even before it's overwritten.
+     */
+    public long getOffHeapBytesUsed() {
+        return offHeapBytesUsed;
+    }
+
+    /**
+     * entries dropped from the off-heap tier to make room for newer ones before they'd expired, so if this keeps
+     * going up, the off-heap tier is too small
+     */
+    public long getOffHeapOverwrittenCount() {
+        return offHeapOverwrittenCount;
+    }
+
+    public long getRequestCount() {
+        return hitCount + missCount;
+    }
+
+    /**
+     * returns the ratio of hits to requests, or 1 if there have been no requests
+     */
+    public double getHitRate() {
+        long requests = getRequestCount();
+        if (requests == 0) {
+            return 1d;
+        } else {
+            return (double)hitCount / (double)requests;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "hits " + hitCount + ", misses " + missCount + " (" + expiredCount + " expired)"
+                + ", loads " + getLoadCount() + " (" + loadFailureCount + " failed, avg " + String.format("%.2f", getAverageLoadMs()) + " ms)"
+                + ", evictions " + evictionCount + ", size " + estimatedSize
+                + ", off-heap " + offHeapBytesUsed + " bytes (" + offHeapOverwrittenCount + " overwritten)";
+    }
+}
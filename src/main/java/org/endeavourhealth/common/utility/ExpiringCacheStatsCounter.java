@@ -0,0 +1,44 @@
+package org.endeavourhealth.common.utility;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * counts for ExpiringCacheStats, using LongAdders so that many threads can record hits
+ * and misses at once without contending on a single counter
+ */
+class ExpiringCacheStatsCounter {
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder expiredCount = new LongAdder();
+    private final LongAdder loadSuccessCount = new LongAdder();
+    private final LongAdder loadFailureCount = new LongAdder();
+    private final LongAdder totalLoadNanos = new LongAdder();
+
+    void recordHit() {
+        hitCount.increment();
+    }
+
+    void recordMiss() {
+        missCount.increment();
+    }
+
+    void recordExpired() {
+        expiredCount.increment();
+        missCount.increment();
+    }
+
+    void recordLoad(long nanos, boolean failed) {
+        if (failed) {
+            loadFailureCount.increment();
+        } else {
+            loadSuccessCount.increment();
+        }
+        totalLoadNanos.add(nanos);
+    }
+
+    ExpiringCacheStats snapshot(long evictionCount, long estimatedSize, long offHeapBytesUsed, long offHeapOverwrittenCount) {
+        return new ExpiringCacheStats(hitCount.sum(), missCount.sum(), expiredCount.sum(), loadSuccessCount.sum(),
+                loadFailureCount.sum(), totalLoadNanos.sum(), evictionCount, estimatedSize, offHeapBytesUsed, offHeapOverwrittenCount);
+    }
+}
@@ -0,0 +1,210 @@
+package org.endeavourhealth.common.utility;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * removes expired elements from the map of an ExpiringCache or ExpiringSet, without ever scanning the whole map.
+ * Elements are put into buckets by their expiry time (rounded up to the bucket resolution), so once a bucket's time
+ * has passed, everything in it can be removed. The sweeping is piggybacked on the cache's own reads and writes,
+ * limited to a fixed number of elements per call, so no single caller pays for a large sweep.
+ *
+ * Elements with different lifetimes just go into different buckets, so mixed TTLs cost nothing extra.
+ *
+ * An element that's replaced or removed is taken out of its bucket straight away by remove(..), so the buckets only
+ * hold the current elements. Removing from the map is also conditional on it still being the current element for
+ * the key, so any that slip through are harmless.
+ */
+class ExpiringCacheSweeper {
+
+    private static final int MAX_SWEEP_PER_CALL = 1000;
+    private static final long MIN_RESOLUTION_MS = 10;
+    private static final long MAX_RESOLUTION_MS = 1000;
+
+    private final Map<?, ? extends ExpiringCacheElement<?>> map;
+    private final Consumer<ExpiringCacheElement<?>> removalListener;
+    private final long resolutionMs;
+    private final ConcurrentNavigableMap<Long, Set<ExpiringCacheElement<?>>> buckets = new ConcurrentSkipListMap<>();
+    private final AtomicBoolean sweeping = new AtomicBoolean();
+    private volatile long nextSweepMs;
+    private Set<ExpiringCacheElement<?>> sweepingBucket = null; //only accessed by the sweeping thread
+
+    ExpiringCacheSweeper(Map<?, ? extends ExpiringCacheElement<?>> map, long msDuration) {
+        this(map, msDuration, null);
+    }
+
+    /**
+     * the removal listener, if not null, is told about every element the sweeper removes from the map
+     */
+    ExpiringCacheSweeper(Map<?, ? extends ExpiringCacheElement<?>> map, long msDuration, Consumer<ExpiringCacheElement<?>> removalListener) {
+        this.map = map;
+        this.removalListener = removalListener;
+
+        //aim for a few dozen buckets over the lifetime of an element
+        this.resolutionMs = Math.max(MIN_RESOLUTION_MS, Math.min(MAX_RESOLUTION_MS, msDuration / 32));
+        this.nextSweepMs = System.currentTimeMillis() + resolutionMs;
+    }
+
+    void add(ExpiringCacheElement<?> element) {
+        long bucketTime = ExpiringCacheElement.saturatedAdd((element.getExpiry() / resolutionMs) * resolutionMs, resolutionMs);
+
+        while (true) {
+            Set<ExpiringCacheElement<?>> bucket = buckets.computeIfAbsent(bucketTime, t -> ConcurrentHashMap.newKeySet());
+            element.sweeperBucket = bucket;
+            bucket.add(element);
+
+            //if it was removed while we were adding it, remove(..) may have looked in the wrong bucket
+            if (element.sweeperRemoved) {
+                bucket.remove(element);
+                return;
+            }
+
+            //if the bucket was taken for sweeping just before we added to it, it may have been missed, so
+            //add it again to a new bucket (if it wasn't missed, removing it twice does no harm)
+            if (buckets.get(bucketTime) == bucket) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * takes the element out of its bucket, when it's been removed from the map or replaced by
+     * another, so the sweeper doesn't keep it (and its value) until it would have expired
+     */
+    void remove(ExpiringCacheElement<?> element) {
+        element.sweeperRemoved = true;
+
+        Set<ExpiringCacheElement<?>> bucket = element.sweeperBucket;
+        if (bucket != null) {
+            bucket.remove(element);
+            element.sweeperBucket = null;
+        }
+    }
+
+    /**
+     * called on every read and write, but only does anything once per bucket resolution, or
+     * straight away if the last sweep had to stop before it was finished
+     */
+    void sweepIfDue() {
+        long now = System.currentTimeMillis();
+        if (now < nextSweepMs) {
+            return;
+        }
+
+        //only one thread sweeps at a time, any others just carry on
+        if (!sweeping.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            boolean finished = sweep(now, MAX_SWEEP_PER_CALL);
+            if (finished) {
+                nextSweepMs = now + resolutionMs;
+            }
+        } finally {
+            sweeping.set(false);
+        }
+    }
+
+    /**
+     * removes everything that's expired, however long that takes
+     */
+    void sweepAll() {
+        long now = System.currentTimeMillis();
+
+        while (!sweeping.compareAndSet(false, true)) {
+            Thread.yield();
+        }
+        try {
+            sweep(now, Integer.MAX_VALUE);
+            nextSweepMs = now + resolutionMs;
+        } finally {
+            sweeping.set(false);
+        }
+    }
+
+    void clear() {
+        buckets.clear();
+    }
+
+    /**
+     * removes up to count elements from the map whether they've expired or not, starting with those that
+     * will expire soonest. Returns the number removed.
+     */
+    long shed(long count) {
+        long removed = 0;
+
+        for (Map.Entry<Long, Set<ExpiringCacheElement<?>>> entry: buckets.entrySet()) {
+            Set<ExpiringCacheElement<?>> bucket = entry.getValue();
+
+            for (Iterator<ExpiringCacheElement<?>> it = bucket.iterator(); removed < count && it.hasNext(); ) {
+                ExpiringCacheElement<?> element = it.next();
+                it.remove();
+                if (map.remove(element.getKey(), element)) {
+                    if (removalListener != null) {
+                        removalListener.accept(element);
+                    }
+                    removed++;
+                }
+            }
+
+            //anything added to the bucket after this is re-added to a new bucket by add(..)
+            if (bucket.isEmpty()) {
+                buckets.remove(entry.getKey(), bucket);
+            }
+
+            if (removed >= count) {
+                break;
+            }
+        }
+
+        return removed;
+    }
+
+    /**
+     * returns true if all expired buckets were swept, false if the limit was reached first
+     */
+    private boolean sweep(long now, int limit) {
+
+        int swept = 0;
+
+        while (true) {
+
+            //take the next expired bucket out of the map before emptying it, so anything added to it after
+            //that is re-added to a new bucket by add(..). If we have to stop part way through a bucket, we
+            //keep hold of it and carry on from there next time.
+            if (sweepingBucket == null) {
+                Map.Entry<Long, Set<ExpiringCacheElement<?>>> first = buckets.firstEntry();
+                if (first == null
+                        || first.getKey().longValue() > now) {
+                    return true;
+                }
+
+                buckets.remove(first.getKey(), first.getValue());
+                sweepingBucket = first.getValue();
+            }
+
+            for (Iterator<ExpiringCacheElement<?>> it = sweepingBucket.iterator(); it.hasNext(); ) {
+                ExpiringCacheElement<?> element = it.next();
+                it.remove();
+                if (map.remove(element.getKey(), element)
+                        && removalListener != null) {
+                    removalListener.accept(element);
+                }
+
+                swept ++;
+                if (swept >= limit) {
+                    return false;
+                }
+            }
+
+            sweepingBucket = null;
+        }
+    }
+}
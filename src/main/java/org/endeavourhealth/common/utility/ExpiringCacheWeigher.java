@@ -0,0 +1,9 @@
+package org.endeavourhealth.common.utility;
+
+/**
+ * calculates the weight of an entry in a weight-bounded ExpiringCache, e.g. an estimate of its size in bytes
+ */
+public interface ExpiringCacheWeigher<K, V> {
+
+    int weigh(K key, V value);
+}
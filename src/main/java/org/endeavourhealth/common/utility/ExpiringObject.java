@@ -1,17 +1,105 @@
 package org.endeavourhealth.common.utility;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
 /**
  * simple object wrapper that flags the data as expired after a period of time, so avoid repeated code
- * NOTE: this class doesn't remove expired objects, so won't free up memory automatically
+ * The expired object is released the first time get() is called after it expires
+ *
+ * The object and its expiry are held together in an immutable holder, so it's safe to use from many threads.
+ * If created with a loader, get() loads the object when missing or expired, with only one thread calling the
+ * loader at a time and any others waiting for its result. It can also reload the object in the background once
+ * part way through its lifetime, so get() doesn't have to wait as long as the loader keeps working.
  */
 public class ExpiringObject<T> {
+    private static final Logger LOG = LoggerFactory.getLogger(ExpiringObject.class);
+
+    private static final int SHARED_REFRESH_THREADS = 2;
+    private static final int SHARED_REFRESH_MAX_QUEUED = 100;
+
+    private static volatile Executor sharedRefreshExecutor;
+    private static Object syncObj = new Object();
 
     private final long msDuration;
-    private T cached;
-    private long cachedExpiry;
+    private final Supplier<T> loader;
+    private final double refreshFraction;
+    private final Executor refreshExecutor;
+    private final AtomicReference<Holder<T>> holder = new AtomicReference<>();
+    private final AtomicReference<CompletableFuture<T>> loading = new AtomicReference<>();
 
     public ExpiringObject(long msDuration) {
+        this(msDuration, null, 0);
+    }
+
+    /**
+     * creates an object that's loaded using the loader when get() is called and it's missing or expired
+     */
+    public ExpiringObject(long msDuration, Supplier<T> loader) {
+        this(msDuration, loader, 0);
+    }
+
+    /**
+     * as above, but once the object is older than refreshFraction of the duration (e.g. 0.8 for 80%), the next get()
+     * returns it but also starts reloading it in the background. The reload is done on a small pool of daemon threads
+     * shared by all ExpiringObjects, and if that's busy, the object is just left to expire and be loaded by get().
+     */
+    public ExpiringObject(long msDuration, Supplier<T> loader, double refreshFraction) {
+        this(msDuration, loader, refreshFraction, null);
+    }
+
+    /**
+     * as above, but the background reload is done using the given executor (or the shared pool if null)
+     */
+    public ExpiringObject(long msDuration, Supplier<T> loader, double refreshFraction, Executor refreshExecutor) {
+        if (refreshFraction < 0
+                || refreshFraction >= 1) {
+            throw new IllegalArgumentException("Refresh fraction must be at least zero and less than one");
+        }
+        if (refreshFraction > 0
+                && loader == null) {
+            throw new IllegalArgumentException("Refresh requires a loader");
+        }
         this.msDuration = msDuration;
+        this.loader = loader;
+        this.refreshFraction = refreshFraction;
+
+        if (refreshFraction > 0
+                && refreshExecutor == null) {
+            this.refreshExecutor = getSharedRefreshExecutor();
+        } else {
+            this.refreshExecutor = refreshExecutor;
+        }
+    }
+
+    private static Executor getSharedRefreshExecutor() {
+        if (sharedRefreshExecutor == null) {
+            synchronized (syncObj) {
+                if (sharedRefreshExecutor == null) {
+                    ThreadFactory namingFactory = new NamingThreadFactory("ExpiringObjectRefresh");
+                    ThreadPoolExecutor executor = new ThreadPoolExecutor(SHARED_REFRESH_THREADS, SHARED_REFRESH_THREADS, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(SHARED_REFRESH_MAX_QUEUED), r -> {
+                        //refresh threads shouldn't keep the app running
+                        Thread t = namingFactory.newThread(r);
+                        t.setDaemon(true);
+                        return t;
+                    });
+                    executor.allowCoreThreadTimeOut(true);
+                    sharedRefreshExecutor = executor;
+                }
+            }
+        }
+        return sharedRefreshExecutor;
     }
 
     public static ExpiringObject factoryOneMinute() {
@@ -22,24 +110,143 @@ public class ExpiringObject<T> {
         return new ExpiringObject(1000L * 60L * 5L);
     }
 
+    /**
+     * returns the object, or null if not set or expired. If there's a loader, it's used to load it instead of
+     * returning null, and any exception it throws is thrown to all threads waiting for it.
+     */
     public T get() {
-        if (cached == null) {
-            return null;
+        Holder<T> current = holder.get();
+        long now = System.currentTimeMillis();
 
-        } else if (isExpired()) {
-            return null;
+        if (current != null
+                && now <= current.expiry) {
+            if (now >= current.refreshAt) {
+                refreshAhead(current);
+            }
+            return current.value;
+        }
+
+        if (current != null) {
+            //let go of the expired object, so it can be garbage collected
+            holder.compareAndSet(current, null);
+        }
 
+        if (loader == null) {
+            return null;
         } else {
-            return this.cached;
+            return load();
         }
     }
 
     public void set(T obj) {
-        this.cachedExpiry = java.lang.System.currentTimeMillis() + msDuration;
-        this.cached = obj;
+        long now = System.currentTimeMillis();
+        long refreshAt = Long.MAX_VALUE;
+        if (refreshFraction > 0) {
+            refreshAt = ExpiringCacheElement.saturatedAdd(now, (long)(msDuration * refreshFraction));
+        }
+        holder.set(new Holder<>(obj, ExpiringCacheElement.saturatedAdd(now, msDuration), refreshAt));
+    }
+
+    private T load() {
+        CompletableFuture<T> future = new CompletableFuture<>();
+
+        while (!loading.compareAndSet(null, future)) {
+            CompletableFuture<T> existingLoad = loading.get();
+            if (existingLoad != null) {
+                return waitForLoad(existingLoad);
+            }
+        }
+
+        try {
+            //another thread may have finished loading between our get and starting this load
+            Holder<T> current = holder.get();
+            T value;
+            if (current != null
+                    && System.currentTimeMillis() <= current.expiry) {
+                value = current.value;
+
+            } else {
+                value = loader.get();
+                if (value != null) {
+                    set(value);
+                }
+            }
+
+            future.complete(value);
+            return value;
+
+        } catch (Throwable t) {
+            future.completeExceptionally(t);
+            throw t;
+
+        } finally {
+            loading.compareAndSet(future, null);
+        }
+    }
+
+    private void refreshAhead(Holder<T> current) {
+
+        //replacing the holder means only one thread starts the refresh, and a failed refresh isn't retried until it expires
+        if (!holder.compareAndSet(current, new Holder<>(current.value, current.expiry, Long.MAX_VALUE))) {
+            return;
+        }
+
+        CompletableFuture<T> future = new CompletableFuture<>();
+        if (!loading.compareAndSet(null, future)) {
+            return;
+        }
+
+        try {
+            refreshExecutor.execute(() -> {
+                try {
+                    T value = loader.get();
+                    if (value != null) {
+                        set(value);
+                    }
+                    future.complete(value);
+
+                } catch (Throwable t) {
+                    LOG.warn("Failed to refresh expiring object", t);
+                    future.completeExceptionally(t);
+
+                } finally {
+                    loading.compareAndSet(future, null);
+                }
+            });
+
+        } catch (RejectedExecutionException ex) {
+            //the executor is busy, so just let the object expire as normal
+            future.complete(current.value);
+            loading.compareAndSet(future, null);
+        }
     }
 
-    private boolean isExpired() {
-        return java.lang.System.currentTimeMillis() > cachedExpiry;
+    private static <T> T waitForLoad(CompletableFuture<T> future) {
+        try {
+            return future.join();
+
+        } catch (CompletionException ex) {
+            //throw the loader's own exception, rather than the wrapper
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            } else if (cause instanceof Error) {
+                throw (Error)cause;
+            } else {
+                throw ex;
+            }
+        }
+    }
+
+    static class Holder<T> {
+        private final T value;
+        private final long expiry;
+        private final long refreshAt;
+
+        Holder(T value, long expiry, long refreshAt) {
+            this.value = value;
+            this.expiry = expiry;
+            this.refreshAt = refreshAt;
+        }
     }
 }
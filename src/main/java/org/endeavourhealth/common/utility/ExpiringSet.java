@@ -10,34 +10,70 @@ import java.util.concurrent.ConcurrentHashMap;
 import org.endeavourhealth.common.utility.ExpiringCache.Duration;
 /**
  * simple cache class, using a concurrent map, to allow us cache items and expire them automatically
- * NOTE: this class doesn't remove expired objects, so won't free up memory automatically
+ * Expired objects are removed a few at a time as the set is used (see ExpiringCacheSweeper), so memory is
+ * freed up without any full scan of the map. cleanUp() can be called to remove all expired objects straight away.
  */
-public class ExpiringSet<V> implements Set<V> {
+public class ExpiringSet<V> implements Set<V>, SheddableCache {
 
     private final Map<V, ExpiringCacheElement<V>> innerMap = new ConcurrentHashMap<>();
     private final long msDuration ;
+    private final ExpiringCacheSweeper sweeper;
 
     public ExpiringSet(long msDuration) {
         this.msDuration = msDuration;
+        this.sweeper = new ExpiringCacheSweeper(innerMap, msDuration);
     }
 
     public ExpiringSet(Duration d) {
 
-        this.msDuration = d.getMs();
+        this(d.getMs());
     }
 
     public ExpiringSet(long msDuration, int initialCapacity) {
-        this.msDuration = msDuration;
+        this(msDuration);
     }
 
 
     public ExpiringSet(long msDuration, Collection<? extends V> c) {
-        this.msDuration = msDuration;
+        this(msDuration);
+    }
+
+    /**
+     * removes all expired objects now, rather than waiting for them to be removed as the set is used
+     */
+    public void cleanUp() {
+        sweeper.sweepAll();
+    }
+
+    /**
+     * removes expired objects, then the given fraction of the rest, starting with those that will
+     * expire soonest. Used to free memory when the heap is nearly full (see CacheMemoryGovernor).
+     */
+    @Override
+    public long shed(double fraction) {
+        sweeper.sweepAll();
+        long count = (long)Math.ceil(innerMap.size() * fraction);
+        return sweeper.shed(count);
     }
 
     @Override
     public boolean add(V value) {
-        ExpiringCacheElement<V> existing = innerMap.put(value, new ExpiringCacheElement<V>(value, msDuration));
+        return add(value, msDuration);
+    }
+
+    /**
+     * adds the value to the set to expire after msTtl, rather than the set duration
+     */
+    public boolean add(V value, long msTtl) {
+        sweeper.sweepIfDue();
+
+        ExpiringCacheElement<V> element = new ExpiringCacheElement<V>(value, value, msTtl);
+        ExpiringCacheElement<V> existing = innerMap.put(value, element);
+        sweeper.add(element);
+        if (existing != null) {
+            sweeper.remove(existing);
+        }
+
         if (existing == null
                 || existing.isExpired()) {
             return false;
@@ -49,6 +85,10 @@ public class ExpiringSet<V> implements Set<V> {
     @Override
     public boolean remove(Object key) {
         ExpiringCacheElement<V> existing = innerMap.remove(key);
+        if (existing != null) {
+            sweeper.remove(existing);
+        }
+
         if (existing == null
                 || existing.isExpired()) {
             return false;
@@ -58,9 +98,17 @@ public class ExpiringSet<V> implements Set<V> {
     }
     @Override
     public boolean contains(Object key) {
+        sweeper.sweepIfDue();
+
         ExpiringCacheElement<V> element = innerMap.get(key);
-        if (element == null
-                || element.isExpired()) {
+        if (element == null) {
+            return false;
+
+        } else if (element.isExpired()) {
+            //no point waiting for the sweeper to get to it
+            if (innerMap.remove(key, element)) {
+                sweeper.remove(element);
+            }
             return false;
         } else {
             return true;
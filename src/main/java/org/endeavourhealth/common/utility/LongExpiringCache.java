@@ -0,0 +1,72 @@
+package org.endeavourhealth.common.utility;
+
+import org.endeavourhealth.common.utility.ExpiringCache.Duration;
+
+/**
+ * version of ExpiringCache for primitive long keys (e.g. patient or organisation IDs), which avoids boxing the keys
+ * and creating an element object for every entry. Entries are held in arrays (see LongExpiringTable), so this uses
+ * a fraction of the memory, and get(..) doesn't take any lock or allocate anything.
+ *
+ * Null values aren't supported, as get(..) returns null for a missing or expired entry.
+ */
+public class LongExpiringCache<V> {
+
+    private final LongExpiringTable table;
+    private final long msDuration;
+
+    public LongExpiringCache(long msDuration) {
+        this(msDuration, 0);
+    }
+
+    public LongExpiringCache(Duration d) {
+        this(d.getMs());
+    }
+
+    public LongExpiringCache(long msDuration, int initialCapacity) {
+        this.msDuration = msDuration;
+        this.table = new LongExpiringTable(initialCapacity, true);
+    }
+
+    public V get(long key) {
+        return (V)table.get(key);
+    }
+
+    /**
+     * returns the previous value for the key, or null if there wasn't one or it had expired
+     */
+    public V put(long key, V value) {
+        return put(key, value, msDuration);
+    }
+
+    /**
+     * puts the value in the cache to expire after msTtl, rather than the cache duration
+     */
+    public V put(long key, V value, long msTtl) {
+        if (value == null) {
+            throw new IllegalArgumentException("Null values not supported in LongExpiringCache");
+        }
+        return (V)table.put(key, value, ExpiringCacheElement.saturatedAdd(System.currentTimeMillis(), msTtl));
+    }
+
+    public V remove(long key) {
+        return (V)table.remove(key);
+    }
+
+    public void clear() {
+        table.clear();
+    }
+
+    /**
+     * removes all expired entries now, rather than waiting for them to be dropped as the cache fills up
+     */
+    public void cleanUp() {
+        table.removeExpired();
+    }
+
+    /**
+     * returns the number of entries, including any that have expired but not been removed yet
+     */
+    public long estimatedSize() {
+        return table.estimatedSize();
+    }
+}
@@ -0,0 +1,70 @@
+package org.endeavourhealth.common.utility;
+
+import org.endeavourhealth.common.utility.ExpiringCache.Duration;
+
+/**
+ * version of ExpiringSet for primitive long values (e.g. patient or organisation IDs), which avoids boxing the values
+ * and creating an element object for every entry. Entries are held in arrays (see LongExpiringTable), so this uses
+ * a fraction of the memory, and contains(..) doesn't take any lock or allocate anything.
+ */
+public class LongExpiringSet {
+
+    private final LongExpiringTable table;
+    private final long msDuration;
+
+    public LongExpiringSet(long msDuration) {
+        this(msDuration, 0);
+    }
+
+    public LongExpiringSet(Duration d) {
+        this(d.getMs());
+    }
+
+    public LongExpiringSet(long msDuration, int initialCapacity) {
+        this.msDuration = msDuration;
+        this.table = new LongExpiringTable(initialCapacity, false);
+    }
+
+    public boolean contains(long value) {
+        return table.get(value) != null;
+    }
+
+    /**
+     * adds the value, or restarts its expiry if already present. Returns true if it wasn't already in the set.
+     */
+    public boolean add(long value) {
+        return add(value, msDuration);
+    }
+
+    /**
+     * adds the value to the set to expire after msTtl, rather than the set duration
+     */
+    public boolean add(long value, long msTtl) {
+        return table.put(value, null, ExpiringCacheElement.saturatedAdd(System.currentTimeMillis(), msTtl)) == null;
+    }
+
+    /**
+     * returns true if the value was in the set and hadn't expired
+     */
+    public boolean remove(long value) {
+        return table.remove(value) != null;
+    }
+
+    public void clear() {
+        table.clear();
+    }
+
+    /**
+     * removes all expired values now, rather than waiting for them to be dropped as the set fills up
+     */
+    public void cleanUp() {
+        table.removeExpired();
+    }
+
+    /**
+     * returns the number of values, including any that have expired but not been removed yet
+     */
+    public long estimatedSize() {
+        return table.estimatedSize();
+    }
+}
@@ -0,0 +1,336 @@
+package org.endeavourhealth.common.utility;
+
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * concurrent hash table of primitive long keys, each with an expiry time and (optionally) a value, used by
+ * LongExpiringCache and LongExpiringSet. There's no boxing or per-entry object; the keys, expiry times and values
+ * are held in parallel arrays using open addressing with linear probing.
+ *
+ * The table is split into segments, each with its own StampedLock. Reads are done under an optimistic read of the
+ * segment's lock, so normally take no lock and allocate nothing, and only fall back to the read lock if a write
+ * happened at the same time. Removal shifts later entries back rather than leaving tombstones. Expired entries are
+ * dropped whenever a segment fills up and is rebuilt, so they only grow the table if they outnumber the live ones.
+ */
+class LongExpiringTable {
+
+    private static final int SEGMENTS = 16; //must be a power of two
+    private static final int MIN_SEGMENT_CAPACITY = 16;
+    private static final double LOAD_FACTOR = 0.75;
+    private static final Object PRESENT = Boolean.TRUE;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final boolean withValues;
+
+    LongExpiringTable(int initialCapacity, boolean withValues) {
+        this.withValues = withValues;
+
+        int segmentCapacity = capacityFor(initialCapacity / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(new Table(segmentCapacity, withValues));
+        }
+    }
+
+    /**
+     * returns the value for the key (or a non-null marker if the table has no values), or null if absent or expired
+     */
+    Object get(long key) {
+        long hash = hash(key);
+        Segment segment = segmentFor(hash);
+        long now = System.currentTimeMillis();
+
+        StampedLock lock = segment.lock;
+        long stamp = lock.tryOptimisticRead();
+        Object ret = find(segment.table, key, hash, now);
+
+        if (!lock.validate(stamp)) {
+            //a write happened while we were reading, so try again properly
+            stamp = lock.readLock();
+            try {
+                ret = find(segment.table, key, hash, now);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return ret;
+    }
+
+    private Object find(Table table, long key, long hash, long now) {
+        int index = indexOf(table, key, hash);
+        if (index < 0
+                || now > table.expiries[index]) {
+            return null;
+        }
+        if (withValues) {
+            return table.values[index];
+        } else {
+            return PRESENT;
+        }
+    }
+
+    /**
+     * puts the key with the expiry time, returning the previous value (or marker) if there was one that hadn't expired
+     */
+    Object put(long key, Object value, long expiry) {
+        long hash = hash(key);
+        Segment segment = segmentFor(hash);
+        long now = System.currentTimeMillis();
+
+        StampedLock lock = segment.lock;
+        long stamp = lock.writeLock();
+        try {
+            Table table = segment.table;
+            int index = indexOf(table, key, hash);
+            if (index >= 0) {
+                Object previous = find(table, key, hash, now);
+                table.expiries[index] = expiry;
+                if (withValues) {
+                    table.values[index] = value;
+                }
+                return previous;
+            }
+
+            if (segment.count + 1 > table.threshold) {
+                table = segment.rebuild(now, withValues);
+            }
+
+            index = (int)hash & table.mask;
+            while (table.expiries[index] != 0) {
+                index = (index + 1) & table.mask;
+            }
+            table.keys[index] = key;
+            if (withValues) {
+                table.values[index] = value;
+            }
+            table.expiries[index] = expiry;
+            segment.count++;
+            return null;
+
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * removes the key, returning the previous value (or marker) if there was one that hadn't expired
+     */
+    Object remove(long key) {
+        long hash = hash(key);
+        Segment segment = segmentFor(hash);
+        long now = System.currentTimeMillis();
+
+        StampedLock lock = segment.lock;
+        long stamp = lock.writeLock();
+        try {
+            Table table = segment.table;
+            int index = indexOf(table, key, hash);
+            if (index < 0) {
+                return null;
+            }
+
+            Object previous = find(table, key, hash, now);
+            segment.delete(index);
+            return previous;
+
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    void clear() {
+        for (Segment segment: segments) {
+            long stamp = segment.lock.writeLock();
+            try {
+                segment.table = new Table(MIN_SEGMENT_CAPACITY, withValues);
+                segment.count = 0;
+            } finally {
+                segment.lock.unlockWrite(stamp);
+            }
+        }
+    }
+
+    /**
+     * drops all expired entries now, shrinking the segments if they're mostly empty
+     */
+    void removeExpired() {
+        long now = System.currentTimeMillis();
+        for (Segment segment: segments) {
+            long stamp = segment.lock.writeLock();
+            try {
+                segment.rebuild(now, withValues);
+            } finally {
+                segment.lock.unlockWrite(stamp);
+            }
+        }
+    }
+
+    /**
+     * the number of entries, including any that have expired but not been dropped yet
+     */
+    long estimatedSize() {
+        long ret = 0;
+        for (Segment segment: segments) {
+            long stamp = segment.lock.readLock();
+            try {
+                ret += segment.count;
+            } finally {
+                segment.lock.unlockRead(stamp);
+            }
+        }
+        return ret;
+    }
+
+    private Segment segmentFor(long hash) {
+        //the low bits choose the slot within the segment, so use the high bits for the segment
+        return segments[(int)(hash >>> 60) & (SEGMENTS - 1)];
+    }
+
+    private static int indexOf(Table table, long key, long hash) {
+        int mask = table.mask;
+        int index = (int)hash & mask;
+
+        //bounded, so a torn optimistic read of a full table can't loop forever
+        for (int i = 0; i <= mask; i++) {
+            if (table.expiries[index] == 0) {
+                return -1;
+            }
+            if (table.keys[index] == key) {
+                return index;
+            }
+            index = (index + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * spreads the bits of the key, as IDs are often sequential (the finaliser from MurmurHash3)
+     */
+    private static long hash(long key) {
+        long h = key;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static int capacityFor(int entries) {
+        int needed = (int)Math.min(1 << 30, (long)Math.ceil(entries / LOAD_FACTOR));
+        int capacity = MIN_SEGMENT_CAPACITY;
+        while (capacity < needed) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    static class Segment {
+        private final StampedLock lock = new StampedLock();
+        private Table table;
+        private int count = 0; //slots in use, including expired entries
+
+        Segment(Table table) {
+            this.table = table;
+        }
+
+        /**
+         * copies the live entries into a new table, at least twice as big as needed for them, and returns it
+         */
+        Table rebuild(long now, boolean withValues) {
+            Table old = table;
+
+            int live = 0;
+            for (int i = 0; i < old.expiries.length; i++) {
+                long expiry = old.expiries[i];
+                if (expiry != 0
+                        && now <= expiry) {
+                    live++;
+                }
+            }
+
+            Table rebuilt = new Table(capacityFor(live * 2), withValues);
+            for (int i = 0; i < old.expiries.length; i++) {
+                long expiry = old.expiries[i];
+                if (expiry == 0
+                        || now > expiry) {
+                    continue;
+                }
+
+                long key = old.keys[i];
+                int index = (int)hash(key) & rebuilt.mask;
+                while (rebuilt.expiries[index] != 0) {
+                    index = (index + 1) & rebuilt.mask;
+                }
+                rebuilt.keys[index] = key;
+                rebuilt.expiries[index] = expiry;
+                if (withValues) {
+                    rebuilt.values[index] = old.values[i];
+                }
+            }
+
+            table = rebuilt;
+            count = live;
+            return rebuilt;
+        }
+
+        /**
+         * empties the slot, then moves back any later entries in the same run that would no
+         * longer be found by probing from their home slot
+         */
+        void delete(int index) {
+            Table t = table;
+            int mask = t.mask;
+            int empty = index;
+            int next = index;
+
+            while (true) {
+                next = (next + 1) & mask;
+                if (t.expiries[next] == 0) {
+                    break;
+                }
+
+                int home = (int)hash(t.keys[next]) & mask;
+
+                //if the home slot is cyclically after the empty slot and no later than this one, it's fine where it is
+                boolean stays;
+                if (empty <= next) {
+                    stays = empty < home && home <= next;
+                } else {
+                    stays = empty < home || home <= next;
+                }
+                if (stays) {
+                    continue;
+                }
+
+                t.keys[empty] = t.keys[next];
+                t.expiries[empty] = t.expiries[next];
+                if (t.values != null) {
+                    t.values[empty] = t.values[next];
+                }
+                empty = next;
+            }
+
+            t.expiries[empty] = 0;
+            if (t.values != null) {
+                t.values[empty] = null;
+            }
+            count--;
+        }
+    }
+
+    static class Table {
+        private final long[] keys;
+        private final long[] expiries; //zero for an empty slot
+        private final Object[] values;
+        private final int mask;
+        private final int threshold;
+
+        Table(int capacity, boolean withValues) {
+            this.keys = new long[capacity];
+            this.expiries = new long[capacity];
+            this.values = withValues ? new Object[capacity] : null;
+            this.mask = capacity - 1;
+            this.threshold = (int)(capacity * LOAD_FACTOR);
+        }
+    }
+}
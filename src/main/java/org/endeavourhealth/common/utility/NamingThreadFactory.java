@@ -3,25 +3,53 @@ package org.endeavourhealth.common.utility;
 import com.google.common.base.Strings;
 
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
 import java.util.concurrent.ThreadFactory;
 
 /**
  * ThreadFactory implementation so that we can specify a name prefix for the threads in the pool
- * so logging is clearer
+ * so logging is clearer. Also works as the worker factory for a ForkJoinPool, and can create virtual
+ * threads when running on Java 21 or later.
  */
-public class NamingThreadFactory implements ThreadFactory {
+public class NamingThreadFactory implements ThreadFactory, ForkJoinPool.ForkJoinWorkerThreadFactory {
 
     private ThreadFactory defaultFactory;
     private String poolName;
+    private boolean virtualThreads;
 
     public NamingThreadFactory(String poolName) {
-        this.defaultFactory = Executors.defaultThreadFactory();
+        this(poolName, false);
+    }
+
+    /**
+     * if virtualThreads is true, then virtual threads are created on Java 21 or later. On earlier
+     * versions, it quietly falls back to normal platform threads.
+     */
+    public NamingThreadFactory(String poolName, boolean virtualThreads) {
+        if (virtualThreads
+                && VirtualThreads.isSupported()) {
+            this.defaultFactory = VirtualThreads.newThreadFactory(poolName);
+            this.virtualThreads = true;
+        } else {
+            this.defaultFactory = Executors.defaultThreadFactory();
+            this.virtualThreads = false;
+        }
         this.poolName = poolName;
     }
 
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
     @Override
     public Thread newThread(Runnable r) {
 
+        //virtual thread names already have the pool name in them
+        if (virtualThreads) {
+            return defaultFactory.newThread(r);
+        }
+
         Thread t = defaultFactory.newThread(r);
         if (!Strings.isNullOrEmpty(poolName)) {
             String newName = poolName + "-" + t.getName();
@@ -29,4 +57,15 @@ public class NamingThreadFactory implements ThreadFactory {
         }
         return t;
     }
+
+    @Override
+    public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+
+        ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+        if (!Strings.isNullOrEmpty(poolName)) {
+            String newName = poolName + "-" + t.getName();
+            t.setName(newName);
+        }
+        return t;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,305 @@
+package org.endeavourhealth.common.utility;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * set for de-duplicating high volumes of values (e.g. message IDs) over a sliding window, as an alternative to
+ * ExpiringSet. Rather than each value having its own expiry time, time is split into buckets and values are added
+ * to the bucket for the current time. contains(..) checks the most recent buckets, and once a bucket is older than
+ * the window, it's dropped as a whole. So there's no per-value expiry to track or sweep, and a value is remembered
+ * for between msDuration and msDuration plus one bucket.
+ *
+ * In approximate mode, each bucket is a Bloom filter rather than a set, which uses around ten bits per value for
+ * a 1% false positive rate, regardless of the size of the values. contains(..) never misses a value that was added,
+ * but may wrongly say one was added when it wasn't. As contains(..) checks every bucket in the window, any of which
+ * could give a false positive, each bucket's filter is sized for the configured rate divided by the number of
+ * buckets checked, so the rate for the set as a whole is roughly the configured one.
+ */
+public class RotatingExpiringSet<V> {
+
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+    private final long bucketMs;
+    private final int buckets;
+    private final long expectedPerBucket;
+    private final double bucketFalsePositiveRate;
+    private final AtomicReferenceArray<Generation> generations;
+    private volatile long lastRotation = -1;
+
+    /**
+     * creates an exact set, remembering values for msDuration, split into the given number of buckets
+     */
+    public RotatingExpiringSet(long msDuration, int buckets) {
+        this(msDuration, buckets, 0, 0);
+    }
+
+    private RotatingExpiringSet(long msDuration, int buckets, long expectedPerBucket, double falsePositiveRate) {
+        if (buckets < 1) {
+            throw new IllegalArgumentException("Must have at least one bucket");
+        }
+        if (msDuration < buckets) {
+            throw new IllegalArgumentException("Duration must be at least one ms per bucket");
+        }
+
+        this.bucketMs = msDuration / buckets;
+        this.buckets = buckets;
+        this.expectedPerBucket = expectedPerBucket;
+        //one extra, for the bucket currently being filled
+        this.generations = new AtomicReferenceArray<>(buckets + 1);
+
+        //the chances of a false positive from each of the buckets checked add up
+        this.bucketFalsePositiveRate = falsePositiveRate / generations.length();
+    }
+
+    /**
+     * creates an approximate set, using a Bloom filter for each bucket, sized for the expected number of values
+     * added per bucket and the acceptable false positive rate for the whole set (e.g. 0.01 for 1%). If more values
+     * than expected are added, the false positive rate goes up.
+     */
+    public static <V> RotatingExpiringSet<V> newApproximate(long msDuration, int buckets, long expectedPerBucket, double falsePositiveRate) {
+        if (expectedPerBucket < 1) {
+            throw new IllegalArgumentException("Expected values per bucket must be at least one");
+        }
+        if (falsePositiveRate <= 0
+                || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("False positive rate must be between zero and one");
+        }
+        return new RotatingExpiringSet<>(msDuration, buckets, expectedPerBucket, falsePositiveRate);
+    }
+
+    public boolean isApproximate() {
+        return expectedPerBucket > 0;
+    }
+
+    /**
+     * adds the value to the current bucket, returning true if it wasn't already in the set
+     */
+    public boolean add(V value) {
+        long current = rotate();
+
+        boolean alreadyPresent = containsInWindow(value, current, false);
+
+        Generation generation = getOrCreate(current);
+        if (generation.add(value)) {
+            return !alreadyPresent;
+        } else {
+            return false;
+        }
+    }
+
+    public boolean contains(Object value) {
+        long current = rotate();
+        return containsInWindow(value, current, true);
+    }
+
+    /**
+     * checks the buckets still in the window, optionally skipping the current one
+     */
+    private boolean containsInWindow(Object value, long current, boolean includeCurrent) {
+        long oldest = current - buckets;
+        long newest = includeCurrent ? current : current - 1;
+
+        for (int i = 0; i < generations.length(); i++) {
+            Generation generation = generations.get(i);
+            if (generation != null
+                    && generation.number >= oldest
+                    && generation.number <= newest
+                    && generation.contains(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void clear() {
+        for (int i = 0; i < generations.length(); i++) {
+            generations.set(i, null);
+        }
+    }
+
+    /**
+     * drops any buckets that have aged out of the window, and returns the current bucket number
+     */
+    private long rotate() {
+        long current = System.currentTimeMillis() / bucketMs;
+        if (current == lastRotation) {
+            return current;
+        }
+
+        long oldest = current - buckets;
+        for (int i = 0; i < generations.length(); i++) {
+            Generation generation = generations.get(i);
+            if (generation != null
+                    && generation.number < oldest) {
+                generations.compareAndSet(i, generation, null);
+            }
+        }
+
+        lastRotation = current;
+        return current;
+    }
+
+    private Generation getOrCreate(long generationNumber) {
+        int index = (int)(generationNumber % generations.length());
+
+        Generation created = null;
+
+        while (true) {
+            Generation generation = generations.get(index);
+
+            //if another thread has already rotated past our generation (e.g. we were held up between rotate() and
+            //here), never replace its newer bucket, just add to that, as it only makes the value live a little longer
+            if (generation != null
+                    && generation.number >= generationNumber) {
+                return generation;
+            }
+
+            //the slot is empty or holds an old bucket, so only now create ours, keeping it if the CAS fails and
+            //we go round again (where we'll most likely find another thread has just created it)
+            if (created == null) {
+                created = newGeneration(generationNumber);
+            }
+            if (generations.compareAndSet(index, generation, created)) {
+                return created;
+            }
+        }
+    }
+
+    private Generation newGeneration(long generationNumber) {
+        if (isApproximate()) {
+            return new BloomGeneration(generationNumber, expectedPerBucket, bucketFalsePositiveRate);
+        } else {
+            return new ExactGeneration(generationNumber);
+        }
+    }
+
+    abstract static class Generation {
+        final long number;
+
+        Generation(long number) {
+            this.number = number;
+        }
+
+        /**
+         * returns true if the value wasn't already in the bucket
+         */
+        abstract boolean add(Object value);
+
+        abstract boolean contains(Object value);
+    }
+
+    static class ExactGeneration extends Generation {
+        private final Set<Object> values = ConcurrentHashMap.newKeySet();
+
+        ExactGeneration(long number) {
+            super(number);
+        }
+
+        @Override
+        boolean add(Object value) {
+            return values.add(value);
+        }
+
+        @Override
+        boolean contains(Object value) {
+            return values.contains(value);
+        }
+    }
+
+    /**
+     * Bloom filter, with the bits set using CAS so it can be added to from many threads without locking. The
+     * bit positions come from a single 128 bit hash of the value, combined as h1 + i * h2 (Kirsch and Mitzenmacher).
+     */
+    static class BloomGeneration extends Generation {
+        private final AtomicLongArray bits;
+        private final long bitCount;
+        private final int hashCount;
+
+        BloomGeneration(long number, long expectedValues, double falsePositiveRate) {
+            super(number);
+
+            //the standard optimal sizes, m = -n ln(p) / ln(2)^2 and k = m / n ln(2)
+            long optimalBits = (long)Math.ceil(-expectedValues * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+            int words = (int)Math.min(Integer.MAX_VALUE - 8, Math.max(1, (optimalBits + 63) / 64));
+            this.bits = new AtomicLongArray(words);
+            this.bitCount = (long)words * 64;
+            this.hashCount = Math.max(1, (int)Math.round((double)optimalBits / expectedValues * Math.log(2)));
+        }
+
+        @Override
+        boolean add(Object value) {
+            HashCode hash = hash(value);
+            long h1 = hash.asLong();
+            long h2 = ByteBuffer.wrap(hash.asBytes()).getLong(8);
+
+            boolean changed = false;
+            long combined = h1;
+            for (int i = 0; i < hashCount; i++) {
+                long bit = (combined & Long.MAX_VALUE) % bitCount;
+                int word = (int)(bit >>> 6);
+                long mask = 1L << bit;
+
+                while (true) {
+                    long old = bits.get(word);
+                    if ((old & mask) != 0) {
+                        break;
+                    }
+                    if (bits.compareAndSet(word, old, old | mask)) {
+                        changed = true;
+                        break;
+                    }
+                }
+                combined += h2;
+            }
+            return changed;
+        }
+
+        @Override
+        boolean contains(Object value) {
+            HashCode hash = hash(value);
+            long h1 = hash.asLong();
+            long h2 = ByteBuffer.wrap(hash.asBytes()).getLong(8);
+
+            long combined = h1;
+            for (int i = 0; i < hashCount; i++) {
+                long bit = (combined & Long.MAX_VALUE) % bitCount;
+                if ((bits.get((int)(bit >>> 6)) & (1L << bit)) == 0) {
+                    return false;
+                }
+                combined += h2;
+            }
+            return true;
+        }
+
+        /**
+         * strings and numbers are hashed by their content, anything else by its hashCode(), which
+         * for values with only 32 bit hash codes means a higher false positive rate
+         */
+        private static HashCode hash(Object value) {
+            if (value instanceof CharSequence) {
+                return HASH_FUNCTION.hashUnencodedChars((CharSequence)value);
+            } else if (value instanceof Long) {
+                return HASH_FUNCTION.hashLong(((Long)value).longValue());
+            } else if (value instanceof Integer) {
+                return HASH_FUNCTION.hashInt(((Integer)value).intValue());
+            } else if (value instanceof UUID) {
+                UUID uuid = (UUID)value;
+                return HASH_FUNCTION.newHasher()
+                        .putLong(uuid.getMostSignificantBits())
+                        .putLong(uuid.getLeastSignificantBits())
+                        .hash();
+            } else {
+                return HASH_FUNCTION.hashInt(value.hashCode());
+            }
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package org.endeavourhealth.common.utility;
+
+/**
+ * a cache that can be told to give up some of its entries to free memory, e.g. by the CacheMemoryGovernor
+ */
+public interface SheddableCache {
+
+    /**
+     * removes roughly the given fraction (between zero and one) of the entries, returning the number removed
+     */
+    long shed(double fraction);
+}
@@ -1,15 +1,17 @@
 package org.endeavourhealth.common.utility;
 
+import com.codahale.metrics.Timer;
 import com.google.common.base.Strings;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
+import java.util.Queue;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -17,61 +19,635 @@ import java.util.concurrent.locks.ReentrantLock;
 public class ThreadPool {
     private static final Logger LOG = LoggerFactory.getLogger(ThreadPool.class);
 
+    /**
+     * what submit(..) should do when maxQueuedBeforeBlocking tasks are already queued or running
+     */
+    public enum AdmissionPolicy {
+        Block, //block the submitting thread until there's space (the original behaviour)
+        BlockWithTimeout, //block for up to the admission timeout, then reject
+        CallerRuns, //run the callable in the submitting thread
+        Reject; //don't run the callable and return a ThreadPoolError for it
+    }
+
+    /**
+     * priority lanes for submit(Priority, Callable). Callables are taken from the lanes in proportion to their
+     * weights, so high priority work goes ahead of bulk work without low priority work being starved.
+     */
+    public enum Priority {
+        High(8),
+        Normal(4),
+        Low(1);
+
+        private int weight;
+
+        Priority(int weight) {
+            this.weight = weight;
+        }
+
+        int getWeight() {
+            return weight;
+        }
+    }
+
+    //a callable that's been waiting in a lower priority lane for this long is taken next, whatever the weights say
+    private static final long LANE_STARVATION_MS = 5000;
+    private static final int[] LANE_SCHEDULE = createLaneSchedule();
+
+    //with no callables starting, the queue wait estimate halves every this often, so it can't get stuck high
+    private static final long QUEUE_WAIT_HALF_LIFE_MS = 1000;
+
     private final ExecutorService threadPool;
+    private final String poolName;
     private final AtomicInteger threadPoolQueueSize = new AtomicInteger();
-    private final ReentrantLock futuresLock = new ReentrantLock();
-    private final Map<Future, Callable> futures = new ConcurrentHashMap<>();
-    private final AtomicInteger futureCheckCounter = new AtomicInteger();
+    private final Queue<ThreadPoolError> errors = new ConcurrentLinkedQueue<>();
+    private final ConcurrentHashMap<Object, ArrayDeque<CallableWrapper>> keyedQueues = new ConcurrentHashMap<>();
     private final int maxQueuedBeforeBlocking;
+    private final Semaphore admissionPermits;
+    private final PriorityLane[] lanes;
+    private final AtomicLong laneDispatchCount = new AtomicLong();
+    private final Semaphore laneCallablesAvailable = new Semaphore(0);
+    private final Runnable laneDispatcher = () -> takeNextFromLanes().run();
+    private final AdmissionPolicy admissionPolicy;
+    private final long admissionTimeoutMs;
     private final ReentrantLock isEmptyLock = new ReentrantLock();
     private final Condition isEmptyCondition = isEmptyLock.newCondition();
+    private volatile ThreadPoolMetrics metrics = null;
+    private ThreadPoolSizer sizer = null;
+    private final Queue<Callable> shed = new ConcurrentLinkedQueue<>();
+    private final AtomicLong shedCount = new AtomicLong();
+    private volatile boolean shedIfDeadlineUnreachable = false;
+    private volatile long queueWaitEstimateNanos = 0;
+    private volatile long queueWaitSampleNanos = 0;
 
     public ThreadPool(int threads, int maxQueuedBeforeBlocking) {
         this(threads, maxQueuedBeforeBlocking, null);
     }
 
     public ThreadPool(int threads, int maxQueuedBeforeBlocking, String poolName) {
+        this(threads, maxQueuedBeforeBlocking, poolName, AdmissionPolicy.Block, 0);
+    }
+
+    /**
+     * admissionTimeoutMs is only used by the BlockWithTimeout policy
+     */
+    public ThreadPool(int threads, int maxQueuedBeforeBlocking, String poolName, AdmissionPolicy admissionPolicy, long admissionTimeoutMs) {
+        this(Executors.newFixedThreadPool(threads, new NamingThreadFactory(poolName)), poolName, maxQueuedBeforeBlocking, admissionPolicy, admissionTimeoutMs);
+    }
 
-        this.threadPool = Executors.newFixedThreadPool(threads, new NamingThreadFactory(poolName));
+    private ThreadPool(ExecutorService threadPool, String poolName, int maxQueuedBeforeBlocking, AdmissionPolicy admissionPolicy, long admissionTimeoutMs) {
+
+        if (admissionPolicy == null) {
+            threadPool.shutdown();
+            throw new IllegalArgumentException("Null admission policy");
+        }
+        if (maxQueuedBeforeBlocking < 1) {
+            //with no permits, every blocking submit would block forever
+            threadPool.shutdown();
+            throw new IllegalArgumentException("Max queued before blocking must be at least one");
+        }
+
+        this.threadPool = threadPool;
+        this.poolName = poolName;
         this.maxQueuedBeforeBlocking = maxQueuedBeforeBlocking;
+        this.admissionPermits = new Semaphore(maxQueuedBeforeBlocking);
+        this.lanes = new PriorityLane[Priority.values().length];
+        for (Priority priority: Priority.values()) {
+            this.lanes[priority.ordinal()] = new PriorityLane(priority, maxQueuedBeforeBlocking);
+        }
+        this.admissionPolicy = admissionPolicy;
+        this.admissionTimeoutMs = admissionTimeoutMs;
+    }
+
+    public static ThreadPool newWorkStealingPool(int threads, int maxQueuedBeforeBlocking, String poolName) {
+        return newWorkStealingPool(threads, maxQueuedBeforeBlocking, poolName, AdmissionPolicy.Block, 0);
+    }
+
+    /**
+     * creates a pool backed by a ForkJoinPool rather than a fixed thread pool. Each worker has its own
+     * deque and steals from the others when idle, rather than every worker and producer contending on a single
+     * shared queue, which suits callables that fan out by submitting more callables. Queue size accounting,
+     * admission, waitUntilEmpty and error reporting all work the same as for the fixed pool.
+     */
+    public static ThreadPool newWorkStealingPool(int threads, int maxQueuedBeforeBlocking, String poolName, AdmissionPolicy admissionPolicy, long admissionTimeoutMs) {
+
+        //async mode gives FIFO ordering for callables that are never joined, which is all of ours
+        ExecutorService forkJoinPool = new ForkJoinPool(threads, new NamingThreadFactory(poolName), null, true);
+        return new ThreadPool(forkJoinPool, poolName, maxQueuedBeforeBlocking, admissionPolicy, admissionTimeoutMs);
+    }
+
+    public static ThreadPool newAdaptivePool(int minThreads, int maxThreads, int maxQueuedBeforeBlocking, String poolName) {
+        return newAdaptivePool(minThreads, maxThreads, maxQueuedBeforeBlocking, poolName, AdmissionPolicy.Block, 0);
+    }
+
+    /**
+     * creates a pool that starts with minThreads and is resized between minThreads and maxThreads
+     * once a second, based on the measured completion rate and latency of the callables (see ThreadPoolSizer).
+     * If metrics are enabled, the current thread count and resize decisions are recorded.
+     */
+    public static ThreadPool newAdaptivePool(int minThreads, int maxThreads, int maxQueuedBeforeBlocking, String poolName, AdmissionPolicy admissionPolicy, long admissionTimeoutMs) {
+        if (minThreads < 1
+                || maxThreads < minThreads) {
+            throw new IllegalArgumentException("Invalid thread range " + minThreads + " to " + maxThreads);
+        }
+
+        //the queue is unbounded, so threads beyond the core size are never created and the sizer just changes the core size
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(minThreads, maxThreads, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), new NamingThreadFactory(poolName));
+        ThreadPool ret = new ThreadPool(executor, poolName, maxQueuedBeforeBlocking, admissionPolicy, admissionTimeoutMs);
+
+        String timerName = Strings.isNullOrEmpty(poolName) ? null : poolName + "-sizer";
+        ret.sizer = new ThreadPoolSizer(executor, minThreads, maxThreads, ret.threadPoolQueueSize, timerName);
+        return ret;
+    }
+
+    public static ThreadPool newVirtualThreadPool(int fallbackThreads, int maxQueuedBeforeBlocking, String poolName) {
+        return newVirtualThreadPool(fallbackThreads, maxQueuedBeforeBlocking, poolName, AdmissionPolicy.Block, 0);
+    }
+
+    /**
+     * creates a pool that, on Java 21 or later, runs each callable on its own virtual thread, which suits callables
+     * that spend most of their time blocked on S3, DB or HTTP calls. There's no queue in front of virtual threads, so
+     * the admission permits are what limit the number in flight to maxQueuedBeforeBlocking. On earlier Java versions,
+     * this creates the same fixed pool of fallbackThreads as the normal constructor.
+     */
+    public static ThreadPool newVirtualThreadPool(int fallbackThreads, int maxQueuedBeforeBlocking, String poolName, AdmissionPolicy admissionPolicy, long admissionTimeoutMs) {
+
+        if (VirtualThreads.isSupported()) {
+            ExecutorService virtualThreadPool = VirtualThreads.newThreadPerTaskExecutor(poolName);
+            return new ThreadPool(virtualThreadPool, poolName, maxQueuedBeforeBlocking, admissionPolicy, admissionTimeoutMs);
+
+        } else {
+            return new ThreadPool(fallbackThreads, maxQueuedBeforeBlocking, poolName, admissionPolicy, admissionTimeoutMs);
+        }
+    }
+
+    /**
+     * registers gauges and timers for this pool with MetricsHelper, under "ThreadPool.<poolName>", covering
+     * queue depth, queue wait and execution time, completed, failed and shed counts and the age of the oldest queued callable.
+     * Metrics are off by default, since MetricsHelper requires ConfigManager to have been initialised.
+     * They're removed from the registry when the pool is stopped.
+     */
+    public void enableMetrics() {
+        if (Strings.isNullOrEmpty(poolName)) {
+            throw new IllegalStateException("Thread pool must have a name to enable metrics");
+        }
+        if (metrics == null) {
+            metrics = new ThreadPoolMetrics(poolName, threadPoolQueueSize);
+            if (sizer != null) {
+                sizer.registerMetrics(metrics);
+            }
+            for (PriorityLane lane: lanes) {
+                lane.registerMetrics(metrics);
+            }
+        }
     }
 
     /**
-     * submits a new callable to the thread pool, and occasionally returns a list of errors that
-     * have occured with previously submitted callables
+     * submits a new callable to the thread pool, and returns a list of errors that
+     * have occured with previously submitted callables since the last check. If the pool already has maxQueuedBeforeBlocking
+     * callables queued or running, the admission policy decides what happens to this one.
      */
     public List<ThreadPoolError> submit(Callable callable) {
-        threadPoolQueueSize.incrementAndGet();
-        Future future = threadPool.submit(new CallableWrapper(callable));
+        return submitImpl(null, callable, 0);
+    }
 
-        //cache the Future object, so we can check for errors later
-        try {
-            futuresLock.lock();
-            futures.put(future, callable);
-        } finally {
-            futuresLock.unlock();
+    /**
+     * submits a new callable that's only worth running before the deadline (a System.currentTimeMillis() time), e.g.
+     * for an API request that the client will have given up on after that. If the callable hasn't started by the deadline,
+     * it's not run but shed, which is counted separately from errors (see drainShed()). If setShedIfDeadlineUnreachable(..)
+     * has been turned on, the callable is also shed straight away if the recent queue wait says it won't start in time.
+     */
+    public List<ThreadPoolError> submitWithDeadline(Callable callable, long deadlineMs) {
+
+        if (shedIfDeadlineUnreachable) {
+            long predictedStartMs = System.currentTimeMillis() + TimeUnit.NANOSECONDS.toMillis(getQueueWaitEstimateNanos());
+            if (predictedStartMs > deadlineMs) {
+                shedCallable(callable);
+                return drainErrors();
+            }
         }
 
-        //if our queue is now at our limit, then block the current thread before the queue is smaller
-        while (threadPoolQueueSize.get() >= maxQueuedBeforeBlocking) {
+        return submitImpl(null, callable, deadlineMs);
+    }
+
+    /**
+     * if true, callables submitted with a deadline are shed when submitted if the average time callables have
+     * recently been waiting in the queue means they wouldn't start before their deadline
+     */
+    public void setShedIfDeadlineUnreachable(boolean shedIfDeadlineUnreachable) {
+        this.shedIfDeadlineUnreachable = shedIfDeadlineUnreachable;
+    }
+
+    /**
+     * returns the callables that have been shed since the last call, because their deadline passed before they
+     * could be started. Like errors, these are kept until drained.
+     */
+    public List<Callable> drainShed() {
+        List<Callable> ret = new ArrayList<>();
+
+        Callable callable;
+        while ((callable = shed.poll()) != null) {
+            ret.add(callable);
+        }
+
+        return ret;
+    }
+
+    /**
+     * total number of callables shed since the pool was created
+     */
+    public long getShedCount() {
+        return shedCount.get();
+    }
+
+    /**
+     * submits a new callable that will only be run after all callables previously submitted with
+     * an equal key have finished, allowing ordered processing per key (e.g. per patient) while different
+     * keys still run in parallel. Keyed callables count towards maxQueuedBeforeBlocking like any other, but
+     * the CallerRuns policy blocks instead, since running in the caller would jump the queue for the key.
+     */
+    public List<ThreadPoolError> submit(Object key, Callable callable) {
+        if (key == null) {
+            throw new IllegalArgumentException("Null key");
+        }
+        return submitImpl(key, callable, 0);
+    }
+
+    /**
+     * submits a new callable to one of the priority lanes. Each lane has its own limit of maxQueuedBeforeBlocking
+     * callables, with the admission policy applied per lane, so bulk work in the Low lane can't stop High priority
+     * work being admitted. Callables are then taken from the lanes by weight (see Priority).
+     * NOTE: callables submitted without a priority don't go through the lanes, so a pool shared between interactive
+     * and bulk work should use this fn for all of it
+     */
+    public List<ThreadPoolError> submit(Priority priority, Callable callable) {
+        if (priority == null) {
+            throw new IllegalArgumentException("Null priority");
+        }
+
+        PriorityLane lane = lanes[priority.ordinal()];
+        RejectedExecutionException rejection = null;
+
+        if (!acquireAdmission(lane.permits)) {
+
+            if (admissionPolicy == AdmissionPolicy.CallerRuns) {
+                runInCallerThread(callable, null, 0);
+            } else {
+                rejection = new RejectedExecutionException("Thread pool has " + maxQueuedBeforeBlocking + " tasks queued in " + priority + " lane");
+            }
+
+        } else {
+            threadPoolQueueSize.incrementAndGet();
+            CallableWrapper wrapper = new CallableWrapper(callable, lane.permits, null);
+            lane.add(wrapper);
+            laneCallablesAvailable.release();
+
+            //each callable added to a lane is matched by one dispatcher on the executor, which runs whichever
+            //callable is next by weight, so the executor never has more dispatchers than lane callables
             try {
-                Thread.sleep(250); //would probably be more elegant to await on a condition but this is simpler
-            } catch (InterruptedException ex) {
-                //if we get interrupted, don't log the error
+                threadPool.execute(laneDispatcher);
+            } catch (RejectedExecutionException ex) {
+                //our dispatcher won't run, so claim a lane callable in its place, as it would have done
+                laneCallablesAvailable.acquireUninterruptibly();
+
+                if (lane.remove(wrapper)) {
+                    //ours was still in the lane, so undo our accounting before letting the exception out
+                    wrapper.dropped();
+                    threadPoolQueueSize.decrementAndGet();
+                    lane.permits.release();
+                    throw ex;
+                }
+
+                //another dispatcher has already taken ours, so it will be run, but that leaves another callable
+                //without a dispatcher, which we can only run in this thread, as the pool is being shut down
+                pollLanes().run();
             }
         }
 
-        //check the futures every so often to see if any are done or any exceptions were raised
-        int counter = futureCheckCounter.incrementAndGet();
-        if (counter % 250 == 0) { //choice of 250 was pretty arbitrary
-            futureCheckCounter.set(0);
+        List<ThreadPoolError> ret = drainErrors();
+        if (rejection != null) {
+            ret.addAll(createErrors(callable, rejection));
+        }
+        return ret;
+    }
+
+    /**
+     * submits a new callable to the thread pool, returning a CompletableFuture for its result, so that
+     * dependent work can be chained on with thenApply(..), thenCompose(..) etc. rather than waiting for the pool
+     * to empty. The callable is subject to the same admission policy as submit(..), so this may block, and if it
+     * fails, the error is still returned from the next submit(..), waitUntilEmpty() or waitAndStop() as well
+     * as completing the future exceptionally. If rejected by the admission policy, the future is completed
+     * with a RejectedExecutionException.
+     *
+     * NOTE: stages that run after the callable run on the pool thread that completed it, after its admission
+     * permit has been released but before it's taken out of the queue size, so any callables they submit
+     * are always waited for by waitUntilEmpty()
+     */
+    public <T> CompletableFuture<T> submitAsync(Callable<T> callable) {
+        return submitAsyncImpl(null, callable);
+    }
+
+    /**
+     * as submitAsync(Callable), but with the same per-key ordering as submit(Object, Callable)
+     */
+    public <T> CompletableFuture<T> submitAsync(Object key, Callable<T> callable) {
+        if (key == null) {
+            throw new IllegalArgumentException("Null key");
+        }
+        return submitAsyncImpl(key, callable);
+    }
+
+    private List<ThreadPoolError> submitImpl(Object key, Callable callable, long deadlineMs) {
+
+        RejectedExecutionException rejection = admitAndExecute(key, callable, null, deadlineMs);
+
+        List<ThreadPoolError> ret = drainErrors();
+        if (rejection != null) {
+            ret.addAll(createErrors(callable, rejection));
+        }
+        return ret;
+    }
+
+    private <T> CompletableFuture<T> submitAsyncImpl(Object key, Callable<T> callable) {
+
+        CompletableFuture<T> future = new CompletableFuture<>();
+
+        RejectedExecutionException rejection = admitAndExecute(key, callable, future, 0);
+        if (rejection != null) {
+            //the error will be returned from the next fn that drains the errors, as for anything else
+            addError(callable, rejection);
+            future.completeExceptionally(rejection);
+        }
+
+        return future;
+    }
 
-            //LOG.trace("Checking {} futures with {} items in pool", futures.size(), threadPoolQueueSize);
-            //LOG.trace("Free mem {} ", Runtime.getRuntime().freeMemory());
-            return checkFuturesForErrors(false);
+    /**
+     * returns the exception if the callable was rejected by the admission policy, otherwise null
+     */
+    private RejectedExecutionException admitAndExecute(Object key, Callable callable, CompletableFuture future, long deadlineMs) {
+
+        //a permit is held for every queued or running callable and released as soon as it finishes, so
+        //blocked threads are woken immediately rather than polling the queue size
+        boolean admitted;
+        if (key != null
+                && admissionPolicy == AdmissionPolicy.CallerRuns) {
+            admissionPermits.acquireUninterruptibly();
+            admitted = true;
         } else {
-            return new ArrayList<>();
+            admitted = acquireAdmission(admissionPermits);
         }
+
+        if (!admitted) {
+
+            if (admissionPolicy == AdmissionPolicy.CallerRuns) {
+                runInCallerThread(callable, future, deadlineMs);
+
+            } else {
+                return new RejectedExecutionException("Thread pool has " + maxQueuedBeforeBlocking + " tasks queued");
+            }
+
+        } else if (deadlineMs > 0
+                && System.currentTimeMillis() > deadlineMs) {
+            //if we were blocked waiting for admission until after the deadline, there's no point queuing it
+            admissionPermits.release();
+            shedCallable(callable);
+
+        } else {
+            threadPoolQueueSize.incrementAndGet();
+            CallableWrapper wrapper = new CallableWrapper(callable, admissionPermits, future);
+            wrapper.deadlineMs = deadlineMs;
+
+            try {
+                if (key == null) {
+                    threadPool.execute(wrapper);
+                } else {
+                    executeKeyed(key, wrapper);
+                }
+            } catch (RejectedExecutionException ex) {
+                //if the pool has been shut down, undo our accounting before letting the exception out
+                wrapper.dropped();
+                threadPoolQueueSize.decrementAndGet();
+                admissionPermits.release();
+                throw ex;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * if nothing is running for the key, the callable is started straight away, otherwise it's queued
+     * up behind the running one. The queues are only modified within compute(..), which locks on the key
+     * in the map, and removed once empty, so no thread or memory is held for idle keys.
+     */
+    private void executeKeyed(Object key, CallableWrapper wrapper) {
+        boolean[] startNow = new boolean[1];
+
+        keyedQueues.compute(key, (k, pending) -> {
+            if (pending == null) {
+                startNow[0] = true;
+                return new ArrayDeque<>();
+            } else {
+                pending.add(wrapper);
+                return pending;
+            }
+        });
+
+        if (startNow[0]) {
+            try {
+                threadPool.execute(new KeyedRunnable(key, wrapper));
+            } catch (RejectedExecutionException ex) {
+                //ours won't run, but other callables for the key may have been queued behind it since, so hand the
+                //key on to them as if ours had finished, only leaving our own accounting to be undone by the caller
+                KeyedRunnable next = takeNextForKey(key);
+                if (next != null) {
+                    try {
+                        threadPool.execute(next);
+                    } catch (RejectedExecutionException ex2) {
+                        //if the pool is being shut down, run them in this thread, as KeyedRunnable does
+                        next.run();
+                    }
+                }
+                throw ex;
+            }
+        }
+    }
+
+    /**
+     * takes the next callable queued for the key, or removes the key's queue if there's nothing left in it
+     */
+    private KeyedRunnable takeNextForKey(Object key) {
+        CallableWrapper[] next = new CallableWrapper[1];
+
+        keyedQueues.compute(key, (k, pending) -> {
+            next[0] = pending.poll();
+            if (next[0] == null) {
+                return null; //nothing more for this key, so remove it from the map
+            } else {
+                return pending;
+            }
+        });
+
+        if (next[0] == null) {
+            return null;
+        } else {
+            return new KeyedRunnable(key, next[0]);
+        }
+    }
+
+    private boolean acquireAdmission(Semaphore permits) {
+
+        switch (admissionPolicy) {
+            case Block:
+                //if we get interrupted, keep waiting as the old sleep loop did
+                permits.acquireUninterruptibly();
+                return true;
+
+            case BlockWithTimeout:
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(admissionTimeoutMs);
+                while (true) {
+                    try {
+                        long remaining = deadline - System.nanoTime();
+                        return permits.tryAcquire(Math.max(remaining, 0), TimeUnit.NANOSECONDS);
+                    } catch (InterruptedException ex) {
+                        //if we get interrupted, don't log the error
+                    }
+                }
+
+            default:
+                return permits.tryAcquire();
+        }
+    }
+
+    /**
+     * spreads the lanes over a cycle in proportion to their weights, interleaved so that e.g. the High lane
+     * doesn't get eight turns in a row (smooth weighted round-robin)
+     */
+    private static int[] createLaneSchedule() {
+        Priority[] priorities = Priority.values();
+
+        int totalWeight = 0;
+        for (Priority priority: priorities) {
+            totalWeight += priority.getWeight();
+        }
+
+        int[] ret = new int[totalWeight];
+        int[] current = new int[priorities.length];
+        for (int i=0; i<totalWeight; i++) {
+            int best = 0;
+            for (int j=0; j<priorities.length; j++) {
+                current[j] += priorities[j].getWeight();
+                if (current[j] > current[best]) {
+                    best = j;
+                }
+            }
+            current[best] -= totalWeight;
+            ret[i] = best;
+        }
+        return ret;
+    }
+
+    /**
+     * blocks until there's a callable in the lanes, then takes the next one by weight. Each callable added
+     * releases one permit, and each dispatcher acquires one, so there's always a callable for us once we have it.
+     */
+    private CallableWrapper takeNextFromLanes() {
+        laneCallablesAvailable.acquireUninterruptibly();
+        return pollLanes();
+    }
+
+    /**
+     * must only be called after acquiring a permit from laneCallablesAvailable
+     */
+    private CallableWrapper pollLanes() {
+
+        while (true) {
+            //anything that's waited too long in a lower lane goes first
+            long now = System.nanoTime();
+            for (int i=lanes.length-1; i>0; i--) {
+                PriorityLane lane = lanes[i];
+                if (lane.getOldestWaitNanos(now) > TimeUnit.MILLISECONDS.toNanos(LANE_STARVATION_MS)) {
+                    CallableWrapper ret = lane.poll();
+                    if (ret != null) {
+                        return ret;
+                    }
+                }
+            }
+
+            //otherwise take from the lane whose turn it is, or the highest non-empty lane if that's empty
+            int turn = LANE_SCHEDULE[(int)(laneDispatchCount.getAndIncrement() % LANE_SCHEDULE.length)];
+            CallableWrapper ret = lanes[turn].poll();
+            if (ret != null) {
+                return ret;
+            }
+
+            for (PriorityLane lane: lanes) {
+                ret = lane.poll();
+                if (ret != null) {
+                    return ret;
+                }
+            }
+
+            //our permit means there's a callable for us, but if one was added to a lane we'd already checked while
+            //another dispatcher took the one we'd have found later, we can miss it, so just look again
+        }
+    }
+
+    /**
+     * runs the callable in the submitting thread, but still tracks it in the queue size so
+     * that waitUntilEmpty and the error reporting work the same as for pooled callables
+     */
+    private void runInCallerThread(Callable callable, CompletableFuture future, long deadlineMs) {
+        threadPoolQueueSize.incrementAndGet();
+        CallableWrapper wrapper = new CallableWrapper(callable, null, future);
+        wrapper.deadlineMs = deadlineMs;
+        wrapper.run();
+    }
+
+    private void shedCallable(Callable callable) {
+        shed.add(callable);
+        shedCount.incrementAndGet();
+
+        ThreadPoolMetrics metrics = this.metrics;
+        if (metrics != null) {
+            metrics.taskShed();
+        }
+    }
+
+    /**
+     * keeps a cheap moving average of how long callables wait between being queued and started, which is what
+     * we use to predict if a new callable will start before its deadline. Updates from different threads can
+     * overwrite each other, but as an estimate that doesn't matter.
+     */
+    private void updateQueueWaitEstimate(long waitNanos, long nowNanos) {
+        long estimate = getQueueWaitEstimateNanos(nowNanos);
+        queueWaitEstimateNanos = estimate + ((waitNanos - estimate) / 8);
+        queueWaitSampleNanos = nowNanos;
+    }
+
+    long getQueueWaitEstimateNanos() {
+        return getQueueWaitEstimateNanos(System.nanoTime());
+    }
+
+    /**
+     * the estimate is only updated when a callable starts, so if it gets high enough that every deadline callable
+     * is shed, nothing would ever bring it down again. So it's zero while the pool is empty, and otherwise decays
+     * with the time since the last callable started.
+     */
+    private long getQueueWaitEstimateNanos(long nowNanos) {
+        if (threadPoolQueueSize.get() == 0) {
+            return 0;
+        }
+
+        long estimate = queueWaitEstimateNanos;
+        long sinceSampleNanos = nowNanos - queueWaitSampleNanos;
+        if (estimate == 0
+                || sinceSampleNanos <= 0) {
+            return estimate;
+        }
+
+        double halfLives = (double)sinceSampleNanos / (double)TimeUnit.MILLISECONDS.toNanos(QUEUE_WAIT_HALF_LIFE_MS);
+        return (long)(estimate * Math.pow(0.5, halfLives));
     }
 
     /**
@@ -104,7 +680,7 @@ public class ThreadPool {
             isEmptyLock.unlock();
         }
 
-        return checkFuturesForErrors(false);
+        return drainErrors();
     }
     /*public List<ThreadPoolError> waitUntilEmpty() {
 
@@ -146,76 +722,154 @@ public class ThreadPool {
             LOG.error("Thread interrupted", ex);
         }
 
-        return checkFuturesForErrors(true);
-    }
-
-    private List<ThreadPoolError> checkFuturesForErrors(boolean forceLock) {
-
-        try {
+        if (sizer != null) {
+            sizer.stop();
+        }
 
-            //when finishing processing, we want to guarantee a lock, but when doing an interim check,
-            //we just try to get the lock and back off if we can't
-            if (forceLock) {
-                futuresLock.lock();
-            } else {
-                if (!futuresLock.tryLock()) {
-                    return new ArrayList<>();
-                }
-            }
+        ThreadPoolMetrics metrics = this.metrics;
+        if (metrics != null) {
+            metrics.unregister();
+        }
 
-            List<ThreadPoolError> ret = new ArrayList<>();
+        return drainErrors();
+    }
 
-            //check all the futures to see if any raised an error. Also, remove any futures that
-            //we know have completed without error.
-            Iterator<Map.Entry<Future, Callable>> it = futures.entrySet().iterator();
-            while (it.hasNext()) {
-                Map.Entry<Future, Callable> entry = it.next();
-                Future future = entry.getKey();
+    private void addError(Callable callable, Throwable t) {
+        errors.addAll(createErrors(callable, t));
+    }
 
-                if (future.isDone()) {
-                    //if it's done, remove from the iterator, which will remove from the map
-                    it.remove();
+    /**
+     * a callable for a batch of items is reported as an error against each item, whether it failed or was
+     * rejected, so callers can tell what didn't get done
+     */
+    private static List<ThreadPoolError> createErrors(Callable callable, Throwable t) {
+        List<ThreadPoolError> ret = new ArrayList<>();
 
-                    //calling get() on the future will cause any exception from the task execution to be raised in this thread
-                    try {
-                        future.get();
-                    } catch (Exception ex) {
+        if (callable instanceof ThreadPoolItemCallable) {
+            List items = ((ThreadPoolItemCallable)callable).getItems();
+            for (Object item: items) {
+                ret.add(new ThreadPoolError(callable, t, item));
+            }
 
-                        //the true exception will be inside an ExecutionException, so get it out and wrap in our own exception
-                        Throwable cause = ex.getCause();
-                        Callable callable = entry.getValue();
+        } else {
+            ret.add(new ThreadPoolError(callable, t));
+        }
 
-                        ret.add(new ThreadPoolError(callable, cause));
-                    }
-                }
-            }
+        return ret;
+    }
 
-            return ret;
+    /**
+     * errors are pushed onto the queue by the CallableWrapper as each callable fails, and successful callables
+     * aren't retained at all, so this is only ever proportional to the number of new errors
+     */
+    private List<ThreadPoolError> drainErrors() {
+        List<ThreadPoolError> ret = new ArrayList<>();
 
-        } finally {
-            futuresLock.unlock();
+        ThreadPoolError error;
+        while ((error = errors.poll()) != null) {
+            ret.add(error);
         }
+
+        return ret;
     }
 
-    class CallableWrapper implements Callable {
+    class CallableWrapper implements Runnable {
         private Callable callable = null;
-
-        public CallableWrapper(Callable callable) {
+        private Semaphore permits = null;
+        private CompletableFuture future = null;
+        private ThreadPoolMetrics metrics = null;
+        long queuedNanos;
+        long deadlineMs;
+        long metricsSequence;
+
+        /**
+         * permits is the semaphore the admission permit was taken from, if any
+         */
+        public CallableWrapper(Callable callable, Semaphore permits, CompletableFuture future) {
             this.callable = callable;
+            this.permits = permits;
+            this.future = future;
+            this.queuedNanos = System.nanoTime();
+
+            //take a reference now, so if metrics are enabled while this is queued, we don't record a finish without a start
+            this.metrics = ThreadPool.this.metrics;
+            if (metrics != null) {
+                metrics.taskQueued(this);
+            }
+        }
+
+        /**
+         * called if the callable was queued but can't be run, so it's not counted in the metrics as still queued
+         */
+        void dropped() {
+            if (metrics != null) {
+                metrics.taskDropped(this);
+            }
         }
 
         @Override
-        public Object call() throws Exception {
+        public void run() {
+
+            long startNanos = 0;
+            if (metrics != null
+                    || sizer != null
+                    || shedIfDeadlineUnreachable) {
+                startNanos = System.nanoTime();
+            }
+            if (metrics != null) {
+                metrics.taskStarted(this, startNanos);
+            }
+            if (shedIfDeadlineUnreachable) {
+                updateQueueWaitEstimate(startNanos - queuedNanos, startNanos);
+            }
+
+            //if the deadline has passed, the result is no longer wanted, so don't waste time running it
+            boolean isShed = deadlineMs > 0
+                    && System.currentTimeMillis() > deadlineMs;
 
-            int sizeAfterCompletion;
-            Object ret;
+            Object result = null;
+            Throwable failure = null;
             try {
-                ret = callable.call();
+                if (!isShed) {
+                    result = callable.call();
+                }
+
+            } catch (Throwable t) {
+                failure = t;
+                addError(callable, t);
+
             } finally {
-                sizeAfterCompletion = threadPoolQueueSize.decrementAndGet();
+                if (!isShed) {
+                    if (metrics != null) {
+                        metrics.taskFinished(startNanos, failure != null);
+                    }
+                    if (sizer != null) {
+                        sizer.taskFinished(System.nanoTime() - startNanos);
+                    }
+                }
+                if (permits != null) {
+                    permits.release();
+                }
+            }
+
+            if (isShed) {
+                shedCallable(callable);
+            }
+
+            //complete any future after releasing our permit, so dependent stages can submit more callables without
+            //waiting on us, but before decrementing the queue size, so waitUntilEmpty() can't miss them
+            if (future != null) {
+                if (isShed) {
+                    future.cancel(false);
+                } else if (failure == null) {
+                    future.complete(result);
+                } else {
+                    future.completeExceptionally(failure);
+                }
             }
 
             //if the pool is now empty, we should attempt to signal any thread waiting on that
+            int sizeAfterCompletion = threadPoolQueueSize.decrementAndGet();
             if (sizeAfterCompletion == 0) {
                 try {
                     isEmptyLock.lock();
@@ -224,9 +878,94 @@ public class ThreadPool {
                     isEmptyLock.unlock();
                 }
             }
+        }
+    }
+
+    /**
+     * runs a keyed callable then hands the next callable for the same key back to the executor, so
+     * keys take turns on the threads rather than one key holding onto a thread
+     */
+    class KeyedRunnable implements Runnable {
+        private Object key = null;
+        private CallableWrapper wrapper = null;
+
+        public KeyedRunnable(Object key, CallableWrapper wrapper) {
+            this.key = key;
+            this.wrapper = wrapper;
+        }
+
+        @Override
+        public void run() {
+
+            KeyedRunnable next = this;
+            while (next != null) {
+                next.wrapper.run();
+                next = takeNextForKey(next.key);
+
+                if (next != null) {
+                    try {
+                        threadPool.execute(next);
+                        return;
+                    } catch (RejectedExecutionException ex) {
+                        //if the pool is being shut down, we can't re-queue, so carry on in this thread
+                    }
+                }
+            }
+        }
+    }
+
+    class PriorityLane {
+        private final Priority priority;
+        private final Semaphore permits;
+        private final Queue<CallableWrapper> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger depth = new AtomicInteger();
+        private volatile Timer waitTimer = null;
+
+        PriorityLane(Priority priority, int maxQueuedBeforeBlocking) {
+            this.priority = priority;
+            this.permits = new Semaphore(maxQueuedBeforeBlocking);
+        }
+
+        void add(CallableWrapper wrapper) {
+            depth.incrementAndGet();
+            queue.add(wrapper);
+        }
+
+        boolean remove(CallableWrapper wrapper) {
+            if (queue.remove(wrapper)) {
+                depth.decrementAndGet();
+                return true;
+            } else {
+                return false;
+            }
+        }
 
+        CallableWrapper poll() {
+            CallableWrapper ret = queue.poll();
+            if (ret != null) {
+                depth.decrementAndGet();
+
+                Timer waitTimer = this.waitTimer;
+                if (waitTimer != null) {
+                    waitTimer.update(System.nanoTime() - ret.queuedNanos, TimeUnit.NANOSECONDS);
+                }
+            }
             return ret;
         }
+
+        long getOldestWaitNanos(long now) {
+            CallableWrapper head = queue.peek();
+            if (head == null) {
+                return 0;
+            } else {
+                return now - head.queuedNanos;
+            }
+        }
+
+        void registerMetrics(ThreadPoolMetrics metrics) {
+            metrics.registerGauge("Lane." + priority + ".Queue Depth", () -> depth.get());
+            this.waitTimer = metrics.timer("Lane." + priority + ".Queue Wait");
+        }
     }
 
 }
@@ -0,0 +1,12 @@
+package org.endeavourhealth.common.utility;
+
+import java.util.List;
+
+/**
+ * processes a batch of items collected by a ThreadPoolBatcher, e.g. by doing a single bulk insert. If an
+ * exception is thrown, a ThreadPoolError is reported for every item in the batch.
+ */
+public interface ThreadPoolBatchHandler<T> {
+
+    void handle(List<T> batch) throws Exception;
+}
@@ -0,0 +1,207 @@
+package org.endeavourhealth.common.utility;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * front-end to a ThreadPool that collects individual items into batches and submits each batch to the pool
+ * as a single callable, so millions of tiny tasks become thousands of bulk operations. A batch is submitted when it
+ * reaches maxBatchSize, or when its first item has waited for maxLingerMs, whichever happens first.
+ *
+ * Errors are reported per item, with ThreadPoolError.getItem() giving the item that the batch failed for.
+ * The batches are submitted to the pool with the normal submit(..) fn, so are subject to the same admission
+ * policy as anything else using the pool, and if a batch is rejected, that's also reported per item.
+ */
+public class ThreadPoolBatcher<T> {
+
+    private final ThreadPool threadPool;
+    private final int maxBatchSize;
+    private final long maxLingerMs;
+    private final ThreadPoolBatchHandler<T> handler;
+    private final ScheduledExecutorService lingerTimer;
+    private final Queue<ThreadPoolError> errors = new ConcurrentLinkedQueue<>();
+    private final Object batchLock = new Object();
+    private List<T> currentBatch = null;
+    private ScheduledFuture<?> currentLinger = null;
+    private boolean closed = false;
+
+    public ThreadPoolBatcher(ThreadPool threadPool, int maxBatchSize, long maxLingerMs, ThreadPoolBatchHandler<T> handler) {
+        this(threadPool, maxBatchSize, maxLingerMs, handler, null);
+    }
+
+    public ThreadPoolBatcher(ThreadPool threadPool, int maxBatchSize, long maxLingerMs, ThreadPoolBatchHandler<T> handler, String batcherName) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("Max batch size must be at least one");
+        }
+
+        this.threadPool = threadPool;
+        this.maxBatchSize = maxBatchSize;
+        this.maxLingerMs = maxLingerMs;
+        this.handler = handler;
+
+        ThreadFactory namingFactory = new NamingThreadFactory(batcherName);
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, r -> {
+            //the timer shouldn't keep the app running if the batcher isn't closed
+            Thread t = namingFactory.newThread(r);
+            t.setDaemon(true);
+            return t;
+        });
+        timer.setRemoveOnCancelPolicy(true);
+        this.lingerTimer = timer;
+    }
+
+    /**
+     * adds an item to the current batch, submitting the batch to the thread pool if it's now full. Returns any
+     * errors that have occurred with previously submitted batches.
+     */
+    public List<ThreadPoolError> add(T item) {
+
+        List<T> fullBatch = null;
+
+        synchronized (batchLock) {
+            if (closed) {
+                throw new IllegalStateException("Batcher has been closed");
+            }
+
+            if (currentBatch == null) {
+                currentBatch = new ArrayList<>(maxBatchSize);
+
+                //the first item in a batch starts the clock for flushing it
+                List<T> newBatch = currentBatch;
+                currentLinger = lingerTimer.schedule(() -> flushIfCurrent(newBatch), maxLingerMs, TimeUnit.MILLISECONDS);
+            }
+
+            currentBatch.add(item);
+
+            if (currentBatch.size() >= maxBatchSize) {
+                fullBatch = takeCurrentBatch();
+            }
+        }
+
+        //submit outside of the lock, as it may block if the pool is full
+        if (fullBatch != null) {
+            submitBatch(fullBatch);
+        }
+
+        return drainErrors();
+    }
+
+    /**
+     * submits the current batch to the thread pool, even if not full
+     */
+    public List<ThreadPoolError> flush() {
+
+        List<T> batch;
+        synchronized (batchLock) {
+            batch = takeCurrentBatch();
+        }
+
+        if (batch != null) {
+            submitBatch(batch);
+        }
+
+        return drainErrors();
+    }
+
+    /**
+     * flushes the current batch and blocks until the thread pool is empty
+     * NOTE: this waits for everything in the pool, not just batches from this batcher
+     */
+    public List<ThreadPoolError> waitUntilEmpty() {
+        List<ThreadPoolError> ret = flush();
+        ret.addAll(threadPool.waitUntilEmpty());
+        ret.addAll(drainErrors());
+        return ret;
+    }
+
+    /**
+     * flushes the current batch and stops the linger timer. Doesn't stop the thread pool, as that may be
+     * shared, so waitAndStop() should still be called on the pool to get any remaining errors.
+     */
+    public List<ThreadPoolError> close() {
+        synchronized (batchLock) {
+            closed = true;
+        }
+        lingerTimer.shutdownNow();
+        return flush();
+    }
+
+    private void flushIfCurrent(List<T> batch) {
+
+        synchronized (batchLock) {
+            //if the batch has already been submitted because it filled up, there's nothing to do
+            if (currentBatch != batch) {
+                return;
+            }
+            currentBatch = null;
+            currentLinger = null;
+        }
+
+        submitBatch(batch);
+    }
+
+    /**
+     * takes the current batch for submitting and cancels its linger task, so the timer isn't left holding a
+     * task for every batch that fills up. Must be called while holding the batch lock.
+     */
+    private List<T> takeCurrentBatch() {
+        List<T> batch = currentBatch;
+        currentBatch = null;
+
+        if (currentLinger != null) {
+            currentLinger.cancel(false);
+            currentLinger = null;
+        }
+
+        return batch;
+    }
+
+    private void submitBatch(List<T> batch) {
+        //submitting may be done by the linger timer thread, so any errors it gets back are kept
+        //so they can be returned to the next caller
+        List<ThreadPoolError> poolErrors = threadPool.submit(new BatchCallable<>(handler, batch));
+        errors.addAll(poolErrors);
+    }
+
+    private List<ThreadPoolError> drainErrors() {
+        List<ThreadPoolError> ret = new ArrayList<>();
+
+        ThreadPoolError error;
+        while ((error = errors.poll()) != null) {
+            ret.add(error);
+        }
+
+        return ret;
+    }
+
+    /**
+     * the callable submitted to the pool for each batch, so if it fails, a separate ThreadPoolError is reported for each item
+     */
+    static class BatchCallable<T> implements ThreadPoolItemCallable {
+        private ThreadPoolBatchHandler<T> handler = null;
+        private List<T> batch = null;
+
+        public BatchCallable(ThreadPoolBatchHandler<T> handler, List<T> batch) {
+            this.handler = handler;
+            this.batch = batch;
+        }
+
+        @Override
+        public List<T> getItems() {
+            return batch;
+        }
+
+        @Override
+        public Object call() throws Exception {
+            handler.handle(batch);
+            return null;
+        }
+    }
+}
@@ -5,10 +5,16 @@ import java.util.concurrent.Callable;
 public class ThreadPoolError {
     private Callable callable = null;
     private Throwable exception = null;
+    private Object item = null;
 
     public ThreadPoolError(Callable callable, Throwable exception) {
+        this(callable, exception, null);
+    }
+
+    public ThreadPoolError(Callable callable, Throwable exception, Object item) {
         this.callable = callable;
         this.exception = exception;
+        this.item = item;
     }
 
     public Callable getCallable() {
@@ -18,4 +24,12 @@ public class ThreadPoolError {
     public Throwable getException() {
         return exception;
     }
+
+    /**
+     * if the callable was for a batch of items (e.g. from a ThreadPoolBatcher or ThreadPoolPipeline),
+     * this is the item the error is for
+     */
+    public Object getItem() {
+        return item;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,13 @@
+package org.endeavourhealth.common.utility;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * callable that processes one or more items, so that if it fails, the ThreadPool reports a
+ * ThreadPoolError against each item, rather than one for the callable
+ */
+interface ThreadPoolItemCallable extends Callable {
+
+    List<?> getItems();
+}
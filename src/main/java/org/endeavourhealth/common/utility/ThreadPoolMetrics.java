@@ -0,0 +1,111 @@
+package org.endeavourhealth.common.utility;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * metrics for a single ThreadPool, registered with the MetricsHelper registry under "ThreadPool.<poolName>".
+ * The timers and meters are looked up once when created, so recording against them for each task is
+ * just an update of the Timer or Meter itself.
+ */
+class ThreadPoolMetrics {
+
+    private final MetricRegistry registry;
+    private final String prefix;
+    private final Timer queueWaitTimer;
+    private final Timer executionTimer;
+    private final Meter completedMeter;
+    private final Meter failedMeter;
+    private final Meter shedMeter;
+
+    //queue times of the callables not yet started, by the order they were queued, used to find the age of the
+    //oldest one. Each is removed as soon as its callable starts (whatever order they start in), and only the
+    //time is held, not the callable, so a callable waiting a long time in a keyed queue or a low priority lane
+    //doesn't keep anything else in memory
+    private final ConcurrentSkipListMap<Long, Long> queuedNanosBySequence = new ConcurrentSkipListMap<>();
+    private final AtomicLong queuedSequence = new AtomicLong();
+
+    ThreadPoolMetrics(String poolName, AtomicInteger threadPoolQueueSize) {
+        this.registry = MetricsHelper.getRegistry();
+        this.prefix = MetricRegistry.name("ThreadPool", poolName);
+
+        this.queueWaitTimer = registry.timer(MetricRegistry.name(prefix, "Queue Wait"));
+        this.executionTimer = registry.timer(MetricRegistry.name(prefix, "Execution Time"));
+        this.completedMeter = registry.meter(MetricRegistry.name(prefix, "Completed"));
+        this.failedMeter = registry.meter(MetricRegistry.name(prefix, "Failed"));
+        this.shedMeter = registry.meter(MetricRegistry.name(prefix, "Shed"));
+
+        registerGauge("Queue Depth", () -> threadPoolQueueSize.get());
+        registerGauge("Oldest Queued Ms", () -> getOldestQueuedMs());
+    }
+
+    void registerGauge(String name, Gauge<?> gauge) {
+        //remove any existing one, e.g. from a previous pool with the same name that wasn't stopped
+        String fullName = MetricRegistry.name(prefix, name);
+        registry.remove(fullName);
+        registry.register(fullName, gauge);
+    }
+
+    Meter meter(String name) {
+        return registry.meter(MetricRegistry.name(prefix, name));
+    }
+
+    Timer timer(String name) {
+        return registry.timer(MetricRegistry.name(prefix, name));
+    }
+
+    void taskQueued(ThreadPool.CallableWrapper wrapper) {
+        long sequence = queuedSequence.incrementAndGet();
+        wrapper.metricsSequence = sequence;
+        queuedNanosBySequence.put(sequence, wrapper.queuedNanos);
+    }
+
+    void taskStarted(ThreadPool.CallableWrapper wrapper, long startNanos) {
+        queuedNanosBySequence.remove(wrapper.metricsSequence);
+        queueWaitTimer.update(startNanos - wrapper.queuedNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * for a callable that was queued but will never be started, e.g. because the pool was shut down
+     */
+    void taskDropped(ThreadPool.CallableWrapper wrapper) {
+        queuedNanosBySequence.remove(wrapper.metricsSequence);
+    }
+
+    void taskFinished(long startNanos, boolean failed) {
+        executionTimer.update(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        if (failed) {
+            failedMeter.mark();
+        } else {
+            completedMeter.mark();
+        }
+    }
+
+    void taskShed() {
+        shedMeter.mark();
+    }
+
+    private long getOldestQueuedMs() {
+        Map.Entry<Long, Long> oldest = queuedNanosBySequence.firstEntry();
+        if (oldest == null) {
+            return 0;
+        } else {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - oldest.getValue().longValue());
+        }
+    }
+
+    /**
+     * removes our metrics from the registry, so a new pool can be created with the same name
+     */
+    void unregister() {
+        registry.removeMatching((name, metric) -> name.startsWith(prefix + "."));
+    }
+}
@@ -0,0 +1,157 @@
+package org.endeavourhealth.common.utility;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * staged pipeline (SEDA-style) for jobs made of a number of steps, e.g. list files, read and parse, transform, then write.
+ * Each stage has its own ThreadPool, with its own thread count and limit on the number of items queued, so the
+ * stages all run at the same time rather than as separate phases with waitUntilEmpty() between them. When a stage's queue
+ * is full, the threads in the previous stage block when passing their output on, so backpressure works back up
+ * the pipeline to whatever is submitting items to the first stage.
+ *
+ * Usage:
+ *      ThreadPoolPipeline<String, Object> pipeline = ThreadPoolPipeline.<String>create("Ingest")
+ *              .addStage("List", 2, 1000, (dir, output) -> ...)
+ *              .addStage("Parse", 8, 1000, (file, output) -> ...)
+ *              .addStage("Write", 4, 1000, (record, output) -> ...);
+ *      pipeline.submit("s3://bucket/dir");
+ *      List<ThreadPoolError> errors = pipeline.waitAndStop();
+ *
+ * All stages must be added before any items are submitted. Errors from every stage are returned from submit(..),
+ * waitUntilEmpty() and waitAndStop(), each with the item the stage failed on. Anything output by the last stage is discarded.
+ */
+public class ThreadPoolPipeline<I, O> {
+
+    private final String pipelineName;
+    private final List<Stage> stages;
+    private final Queue<ThreadPoolError> errors;
+
+    private ThreadPoolPipeline(String pipelineName, List<Stage> stages, Queue<ThreadPoolError> errors) {
+        this.pipelineName = pipelineName;
+        this.stages = stages;
+        this.errors = errors;
+    }
+
+    public static <T> ThreadPoolPipeline<T, T> create(String pipelineName) {
+        return new ThreadPoolPipeline<>(pipelineName, new ArrayList<>(), new ConcurrentLinkedQueue<>());
+    }
+
+    /**
+     * adds a new stage to the end of the pipeline, returning the pipeline with the new output type. The stage's
+     * thread pool is named <pipelineName>-<stageName>, which is also the name its metrics are recorded under.
+     */
+    public <R> ThreadPoolPipeline<I, R> addStage(String stageName, int threads, int maxQueuedBeforeBlocking, ThreadPoolPipelineStage<O, R> stage) {
+        ThreadPool threadPool = new ThreadPool(threads, maxQueuedBeforeBlocking, pipelineName + "-" + stageName);
+        stages.add(new Stage(threadPool, stage));
+        return new ThreadPoolPipeline<>(pipelineName, stages, errors);
+    }
+
+    /**
+     * records per-stage throughput, queue depth, queue wait and execution time (see ThreadPool.enableMetrics())
+     */
+    public void enableMetrics() {
+        for (Stage stage: stages) {
+            stage.threadPool.enableMetrics();
+        }
+    }
+
+    /**
+     * submits an item to the first stage, blocking if its queue is full, and returns any errors that
+     * have occurred in any stage since the last check
+     */
+    public List<ThreadPoolError> submit(I item) {
+        if (stages.isEmpty()) {
+            throw new IllegalStateException("Pipeline has no stages");
+        }
+
+        submitToStage(0, item);
+        return drainErrors();
+    }
+
+    /**
+     * blocks until every stage is empty
+     * NOTE: this does not prevent new items being submitted
+     */
+    public List<ThreadPoolError> waitUntilEmpty() {
+
+        //once a stage is empty, everything it's going to output has been passed to the next one, so
+        //waiting on each stage in order means the whole pipeline is empty at the end
+        for (Stage stage: stages) {
+            errors.addAll(stage.threadPool.waitUntilEmpty());
+        }
+        return drainErrors();
+    }
+
+    /**
+     * waits for every stage to finish, stopping each stage's thread pool in turn
+     */
+    public List<ThreadPoolError> waitAndStop() {
+        for (Stage stage: stages) {
+            errors.addAll(stage.threadPool.waitAndStop());
+        }
+        return drainErrors();
+    }
+
+    private void submitToStage(int stageIndex, Object item) {
+        Stage stage = stages.get(stageIndex);
+
+        //this may be called from a thread in the previous stage, so any errors it gets back are kept so
+        //they can be returned to the next caller
+        List<ThreadPoolError> stageErrors = stage.threadPool.submit(new StageCallable(stageIndex, item));
+        errors.addAll(stageErrors);
+    }
+
+    private List<ThreadPoolError> drainErrors() {
+        List<ThreadPoolError> ret = new ArrayList<>();
+
+        ThreadPoolError error;
+        while ((error = errors.poll()) != null) {
+            ret.add(error);
+        }
+
+        return ret;
+    }
+
+    static class Stage {
+        private ThreadPool threadPool = null;
+        private ThreadPoolPipelineStage processor = null;
+
+        public Stage(ThreadPool threadPool, ThreadPoolPipelineStage processor) {
+            this.threadPool = threadPool;
+            this.processor = processor;
+        }
+    }
+
+    class StageCallable implements ThreadPoolItemCallable {
+        private int stageIndex;
+        private Object item = null;
+
+        public StageCallable(int stageIndex, Object item) {
+            this.stageIndex = stageIndex;
+            this.item = item;
+        }
+
+        @Override
+        public List<?> getItems() {
+            return Collections.singletonList(item);
+        }
+
+        @Override
+        public Object call() throws Exception {
+            Stage stage = stages.get(stageIndex);
+
+            int nextStageIndex = stageIndex + 1;
+            if (nextStageIndex < stages.size()) {
+                stage.processor.process(item, output -> submitToStage(nextStageIndex, output));
+            } else {
+                stage.processor.process(item, output -> {});
+            }
+
+            return null;
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package org.endeavourhealth.common.utility;
+
+import java.util.function.Consumer;
+
+/**
+ * one stage of a ThreadPoolPipeline, which processes a single item and passes any number of results
+ * to the output, e.g. one item per file found when listing a directory. Passing a result to the output
+ * blocks if the next stage's queue is full.
+ */
+public interface ThreadPoolPipelineStage<I, O> {
+
+    void process(I item, Consumer<O> output) throws Exception;
+}
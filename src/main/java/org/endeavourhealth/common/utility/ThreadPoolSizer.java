@@ -0,0 +1,135 @@
+package org.endeavourhealth.common.utility;
+
+import com.codahale.metrics.Meter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * resizes an adaptive ThreadPool between a min and max number of threads, using hill-climbing on the measured
+ * completion rate (similar to the .NET thread pool). Every sample interval, it compares the throughput with the
+ * previous interval. If the last resize made things better, it carries on in the same direction, if it made things
+ * worse it turns round, and if it made no real difference it prefers fewer threads, unless task latency dropped.
+ * When there's no backlog of queued tasks, it drifts back down towards the minimum.
+ */
+class ThreadPoolSizer implements Runnable {
+    private static final Logger LOG = LoggerFactory.getLogger(ThreadPoolSizer.class);
+
+    private static final long SAMPLE_INTERVAL_MS = 1000;
+    private static final double SIGNIFICANT_CHANGE = 0.05; //5% change in throughput or latency
+
+    private final ThreadPoolExecutor executor;
+    private final int minThreads;
+    private final int maxThreads;
+    private final int step;
+    private final AtomicInteger threadPoolQueueSize;
+    private final ScheduledExecutorService timer;
+    private final LongAdder completedCount = new LongAdder();
+    private final LongAdder executionNanos = new LongAdder();
+
+    //only accessed by the timer thread
+    private double lastThroughput = -1;
+    private double lastLatency = -1;
+    private int direction = 1;
+
+    private volatile Meter resizeUpMeter = null;
+    private volatile Meter resizeDownMeter = null;
+
+    ThreadPoolSizer(ThreadPoolExecutor executor, int minThreads, int maxThreads, AtomicInteger threadPoolQueueSize, String timerName) {
+        this.executor = executor;
+        this.minThreads = minThreads;
+        this.maxThreads = maxThreads;
+        this.step = Math.max(1, (maxThreads - minThreads) / 16);
+        this.threadPoolQueueSize = threadPoolQueueSize;
+
+        this.timer = new ScheduledThreadPoolExecutor(1, new NamingThreadFactory(timerName));
+        this.timer.scheduleWithFixedDelay(this, SAMPLE_INTERVAL_MS, SAMPLE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    void taskFinished(long nanos) {
+        completedCount.increment();
+        executionNanos.add(nanos);
+    }
+
+    void registerMetrics(ThreadPoolMetrics metrics) {
+        metrics.registerGauge("Threads", () -> executor.getCorePoolSize());
+        this.resizeUpMeter = metrics.meter("Resize Up");
+        this.resizeDownMeter = metrics.meter("Resize Down");
+    }
+
+    void stop() {
+        timer.shutdownNow();
+    }
+
+    @Override
+    public void run() {
+        //don't let an exception kill off the scheduled task
+        try {
+            resize();
+        } catch (Throwable t) {
+            LOG.error("Error resizing thread pool", t);
+        }
+    }
+
+    private void resize() {
+        long count = completedCount.sumThenReset();
+        long nanos = executionNanos.sumThenReset();
+
+        double throughput = (double)count * 1000d / SAMPLE_INTERVAL_MS;
+        double latency = count > 0 ? (double)nanos / count : 0;
+
+        int current = executor.getCorePoolSize();
+
+        if (threadPoolQueueSize.get() <= current) {
+            //no backlog, so more threads can't help
+            direction = -1;
+            lastThroughput = -1;
+
+        } else if (lastThroughput < 0) {
+            //first sample with a backlog, so try more threads
+            direction = 1;
+
+        } else {
+            double throughputChange = relativeChange(lastThroughput, throughput);
+            double latencyChange = relativeChange(lastLatency, latency);
+
+            if (throughputChange < -SIGNIFICANT_CHANGE) {
+                direction = -direction;
+
+            } else if (throughputChange < SIGNIFICANT_CHANGE
+                    && latencyChange > -SIGNIFICANT_CHANGE) {
+                direction = -1;
+            }
+        }
+
+        lastThroughput = throughput;
+        lastLatency = latency;
+
+        int target = Math.max(minThreads, Math.min(maxThreads, current + (direction * step)));
+        if (target == current) {
+            return;
+        }
+
+        LOG.trace("Resizing thread pool from {} to {} threads, throughput {}/s", current, target, throughput);
+        executor.setCorePoolSize(target);
+
+        Meter meter = target > current ? resizeUpMeter : resizeDownMeter;
+        if (meter != null) {
+            meter.mark();
+        }
+    }
+
+    private static double relativeChange(double previous, double now) {
+        if (previous <= 0) {
+            return 0;
+        } else {
+            return (now - previous) / previous;
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package org.endeavourhealth.common.utility;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * access to virtual threads, which only exist from Java 21. This is the Java 8 version, which just reports
+ * them as unsupported. The Java 21 version is in src/main/java21 and is packaged under META-INF/versions/21
+ * of the multi-release jar, so is used in place of this class when running on Java 21 or later.
+ */
+final class VirtualThreads {
+
+    private VirtualThreads() {}
+
+    static boolean isSupported() {
+        return false;
+    }
+
+    static ThreadFactory newThreadFactory(String poolName) {
+        throw new UnsupportedOperationException("Virtual threads require Java 21 or later");
+    }
+
+    static ExecutorService newThreadPerTaskExecutor(String poolName) {
+        throw new UnsupportedOperationException("Virtual threads require Java 21 or later");
+    }
+}
@@ -0,0 +1,31 @@
+package org.endeavourhealth.common.utility;
+
+import com.google.common.base.Strings;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Java 21 version of VirtualThreads, packaged under META-INF/versions/21 of the multi-release jar
+ */
+final class VirtualThreads {
+
+    private VirtualThreads() {}
+
+    static boolean isSupported() {
+        return true;
+    }
+
+    static ThreadFactory newThreadFactory(String poolName) {
+        String prefix = "virtual-";
+        if (!Strings.isNullOrEmpty(poolName)) {
+            prefix = poolName + "-" + prefix;
+        }
+        return Thread.ofVirtual().name(prefix, 1).factory();
+    }
+
+    static ExecutorService newThreadPerTaskExecutor(String poolName) {
+        return Executors.newThreadPerTaskExecutor(newThreadFactory(poolName));
+    }
+}
@@ -0,0 +1,38 @@
+package org.endeavourhealth.common.utility;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+
+public class RotatingExpiringSetTest {
+
+    @Test
+    public void approximateFalsePositiveRateIsForWholeWindow() throws Exception {
+        int buckets = 5;
+        long bucketMs = 200;
+        int perBucket = 10000;
+        double falsePositiveRate = 0.01;
+
+        RotatingExpiringSet<String> set = RotatingExpiringSet.newApproximate(bucketMs * buckets, buckets, perBucket, falsePositiveRate);
+
+        //fill every bucket in the window, so contains(..) has a full filter to check in each one
+        for (int bucket = 0; bucket <= buckets; bucket++) {
+            for (int i = 0; i < perBucket; i++) {
+                set.add("added-" + bucket + "-" + i);
+            }
+            Thread.sleep(bucketMs);
+        }
+
+        int checks = 100000;
+        int falsePositives = 0;
+        for (int i = 0; i < checks; i++) {
+            if (set.contains("not-added-" + i)) {
+                falsePositives++;
+            }
+        }
+
+        //with each bucket sized for the configured rate, this was several times as high
+        double rate = (double)falsePositives / checks;
+        assertTrue("false positive rate " + rate, rate < falsePositiveRate * 1.5);
+    }
+}
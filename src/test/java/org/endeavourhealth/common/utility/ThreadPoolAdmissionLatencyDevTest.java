@@ -0,0 +1,133 @@
+package org.endeavourhealth.common.utility;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * measures how long a producer is stalled in submit(..) once the pool has reached maxQueuedBeforeBlocking, comparing
+ * ThreadPool's semaphore admission with the sleep polling it replaced (reproduced in SleepPollingPool below, as the
+ * old submit(..) did it). Each callable sleeps for a short time, so the queue is always full and nearly every submit
+ * has to wait for a slot. Not run as part of the build (see the surefire excludes), just run main(..) by hand.
+ */
+public class ThreadPoolAdmissionLatencyDevTest {
+
+    private static final int THREADS = 4;
+    private static final int MAX_QUEUED = 8;
+    private static final int TASKS = 400;
+    private static final long TASK_MS = 2;
+
+    public static void main(String[] args) throws Exception {
+
+        //warm up, so the JIT has done its work before anything is measured
+        runSemaphore(TASKS);
+        runSleepPolling(TASKS / 4);
+
+        report("Sleep polling (before)", runSleepPolling(TASKS));
+        report("Semaphore admission (after)", runSemaphore(TASKS));
+    }
+
+    private static long[] runSemaphore(int tasks) throws Exception {
+        ThreadPool pool = new ThreadPool(THREADS, MAX_QUEUED, "DevTest");
+
+        long[] stalls = new long[tasks];
+        for (int i = 0; i < tasks; i++) {
+            long start = System.nanoTime();
+            pool.submit(new SleepingCallable());
+            stalls[i] = System.nanoTime() - start;
+        }
+
+        pool.waitAndStop();
+        return stalls;
+    }
+
+    private static long[] runSleepPolling(int tasks) throws Exception {
+        SleepPollingPool pool = new SleepPollingPool(THREADS, MAX_QUEUED);
+
+        long[] stalls = new long[tasks];
+        for (int i = 0; i < tasks; i++) {
+            long start = System.nanoTime();
+            pool.submit(new SleepingCallable());
+            stalls[i] = System.nanoTime() - start;
+        }
+
+        pool.stop();
+        return stalls;
+    }
+
+    private static void report(String name, long[] stalls) {
+        long[] sorted = stalls.clone();
+        Arrays.sort(sorted);
+
+        long total = 0;
+        for (long stall: sorted) {
+            total += stall;
+        }
+
+        //with every slot busy, the pool can't take a new callable more often than this
+        double idealMs = (double)TASK_MS / (double)THREADS;
+
+        System.out.println(String.format("%s: %d submits, stall mean %.2f ms (ideal ~%.2f ms), p50 %.2f ms, p99 %.2f ms, max %.2f ms, total %.2f s",
+                name, sorted.length, toMs(total / sorted.length), idealMs, toMs(percentile(sorted, 0.5)), toMs(percentile(sorted, 0.99)),
+                toMs(sorted[sorted.length - 1]), toMs(total) / 1000d));
+    }
+
+    private static long percentile(long[] sorted, double fraction) {
+        int index = Math.min(sorted.length - 1, (int)(sorted.length * fraction));
+        return sorted[index];
+    }
+
+    private static double toMs(long nanos) {
+        return nanos / 1000000d;
+    }
+
+    static class SleepingCallable implements Callable {
+        @Override
+        public Object call() throws Exception {
+            Thread.sleep(TASK_MS);
+            return null;
+        }
+    }
+
+    /**
+     * the admission part of ThreadPool.submit(..) as it was before the semaphore, which polled the queue size
+     * every 250ms once the pool was full
+     */
+    static class SleepPollingPool {
+        private final ExecutorService threadPool;
+        private final AtomicInteger threadPoolQueueSize = new AtomicInteger();
+        private final int maxQueuedBeforeBlocking;
+
+        SleepPollingPool(int threads, int maxQueuedBeforeBlocking) {
+            this.threadPool = Executors.newFixedThreadPool(threads, new NamingThreadFactory("DevTest"));
+            this.maxQueuedBeforeBlocking = maxQueuedBeforeBlocking;
+        }
+
+        void submit(Callable callable) {
+            threadPoolQueueSize.incrementAndGet();
+            threadPool.submit(() -> {
+                try {
+                    return callable.call();
+                } finally {
+                    threadPoolQueueSize.decrementAndGet();
+                }
+            });
+
+            while (threadPoolQueueSize.get() >= maxQueuedBeforeBlocking) {
+                try {
+                    Thread.sleep(250);
+                } catch (InterruptedException ex) {
+                    //if we get interrupted, don't log the error
+                }
+            }
+        }
+
+        void stop() throws InterruptedException {
+            threadPool.shutdown();
+            threadPool.awaitTermination(1, TimeUnit.MINUTES);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package org.endeavourhealth.common.utility;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ThreadPoolBatcherTest {
+
+    @Test
+    public void rejectedBatchIsReportedPerItem() throws Exception {
+        ThreadPool pool = new ThreadPool(1, 1, null, ThreadPool.AdmissionPolicy.Reject, 0);
+
+        //fill the pool, so the batch is rejected
+        CountDownLatch release = new CountDownLatch(1);
+        pool.submit(() -> {
+            release.await();
+            return null;
+        });
+
+        ThreadPoolBatcher<Integer> batcher = new ThreadPoolBatcher<>(pool, 3, 60000, batch -> {});
+        batcher.add(1);
+        batcher.add(2);
+        List<ThreadPoolError> errors = batcher.add(3);
+
+        Set<Object> items = new HashSet<>();
+        for (ThreadPoolError error: errors) {
+            assertTrue(error.getException() instanceof RejectedExecutionException);
+            items.add(error.getItem());
+        }
+        assertEquals(3, errors.size());
+        assertEquals(3, items.size());
+
+        release.countDown();
+        batcher.close();
+        pool.waitAndStop();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void addAfterCloseIsRejected() {
+        ThreadPool pool = new ThreadPool(1, 10);
+        ThreadPoolBatcher<Integer> batcher = new ThreadPoolBatcher<>(pool, 10, 60000, batch -> {});
+        batcher.close();
+        try {
+            batcher.add(1);
+        } finally {
+            pool.waitAndStop();
+        }
+    }
+}
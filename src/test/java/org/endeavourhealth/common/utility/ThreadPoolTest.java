@@ -0,0 +1,100 @@
+package org.endeavourhealth.common.utility;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ThreadPoolTest {
+
+    /**
+     * builds up a queue wait estimate of a few hundred ms, by queuing quick callables behind a slow one
+     */
+    private static void buildQueueWaitEstimate(ThreadPool pool) {
+        pool.submit(() -> {
+            Thread.sleep(500);
+            return null;
+        });
+        for (int i=0; i<8; i++) {
+            pool.submit(() -> null);
+        }
+        pool.waitUntilEmpty();
+    }
+
+    @Test
+    public void deadlineEstimateRecoversOnceQueueDrains() {
+        ThreadPool pool = new ThreadPool(1, 100);
+        pool.setShedIfDeadlineUnreachable(true);
+
+        buildQueueWaitEstimate(pool);
+
+        //the pool is now empty, so a callable with a short deadline must be run, not shed
+        pool.submitWithDeadline(() -> null, System.currentTimeMillis() + 50);
+        List<ThreadPoolError> errors = pool.waitAndStop();
+
+        assertTrue(errors.isEmpty());
+        assertEquals(0, pool.getShedCount());
+    }
+
+    @Test
+    public void deadlineEstimateDecaysWithNoCallablesStarting() throws Exception {
+        ThreadPool pool = new ThreadPool(1, 100);
+        pool.setShedIfDeadlineUnreachable(true);
+
+        buildQueueWaitEstimate(pool);
+
+        //keep the pool busy, so it's not empty, but without any more callables starting
+        CountDownLatch release = new CountDownLatch(1);
+        pool.submit(() -> {
+            release.await();
+            return null;
+        });
+        Thread.sleep(50);
+
+        long before = pool.getQueueWaitEstimateNanos();
+        assertTrue("estimate " + before, before > TimeUnit.MILLISECONDS.toNanos(100));
+
+        Thread.sleep(2000);
+        long after = pool.getQueueWaitEstimateNanos();
+        assertTrue("estimate " + after, after < before / 3);
+
+        release.countDown();
+        pool.waitAndStop();
+    }
+
+    @Test
+    public void priorityLanesRunEverything() throws Exception {
+        ThreadPool pool = new ThreadPool(4, 50);
+        AtomicInteger ran = new AtomicInteger();
+
+        Thread[] producers = new Thread[3];
+        for (int i=0; i<producers.length; i++) {
+            ThreadPool.Priority priority = ThreadPool.Priority.values()[i];
+            producers[i] = new Thread(() -> {
+                for (int j=0; j<10000; j++) {
+                    pool.submit(priority, () -> ran.incrementAndGet());
+                }
+            });
+            producers[i].start();
+        }
+        for (Thread producer: producers) {
+            producer.join();
+        }
+
+        List<ThreadPoolError> errors = pool.waitUntilEmpty();
+        errors.addAll(pool.waitAndStop());
+
+        assertTrue(errors.isEmpty());
+        assertEquals(30000, ran.get());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void maxQueuedMustBePositive() {
+        new ThreadPool(1, 0);
+    }
+}
@@ -0,0 +1,129 @@
+package org.endeavourhealth.common.utility;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * throughput benchmark for ThreadPool, comparing the fixed pool (one shared queue) with the work-stealing
+ * pool at 8, 32 and 64 threads, with two workloads. In the first, several producers each submit lots of tiny
+ * callables, so the time is mostly spent queueing and dispatching rather than doing the work. In the second,
+ * each callable fans out by submitting more callables from the pool's own threads, which is what the work-stealing
+ * pool is meant for. Not run as part of the build (see the surefire excludes), just run main(..) by hand.
+ */
+public class ThreadPoolThroughputDevTest {
+
+    private static final int[] THREAD_COUNTS = {8, 32, 64};
+    private static final int PRODUCERS = 4;
+    private static final int TASKS_PER_PRODUCER = 250000;
+    private static final int MAX_QUEUED = 10000;
+    private static final int FAN_OUT_PARENTS = 2000;
+    private static final int FAN_OUT_CHILDREN = 50;
+    private static final int RUNS = 3;
+
+    private static final AtomicLong sink = new AtomicLong();
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("Available processors " + Runtime.getRuntime().availableProcessors());
+
+        //warm up both engines, so the JIT has done its work before anything is measured
+        for (int i = 0; i < 2; i++) {
+            runOnce(false, 8, false);
+            runOnce(true, 8, false);
+            runOnce(false, 8, true);
+            runOnce(true, 8, true);
+        }
+
+        for (boolean fanOut: new boolean[]{false, true}) {
+            System.out.println(fanOut ? "Fan-out from pool threads:" : "Tiny callables from " + PRODUCERS + " producers:");
+
+            for (int threads: THREAD_COUNTS) {
+                double fixed = best(false, threads, fanOut);
+                double stealing = best(true, threads, fanOut);
+                System.out.println(String.format("%d threads: fixed %,.0f tasks/s, work-stealing %,.0f tasks/s (%+.0f%%)",
+                        threads, fixed, stealing, (stealing - fixed) * 100d / fixed));
+            }
+        }
+    }
+
+    private static double best(boolean workStealing, int threads, boolean fanOut) throws Exception {
+        double best = 0;
+        for (int i = 0; i < RUNS; i++) {
+            best = Math.max(best, runOnce(workStealing, threads, fanOut));
+        }
+        return best;
+    }
+
+    /**
+     * returns the tasks per second
+     */
+    private static double runOnce(boolean workStealing, int threads, boolean fanOut) throws Exception {
+
+        //for the fan-out, the queue must hold every callable, otherwise pool threads blocked submitting
+        //children could leave nothing free to run them
+        int maxQueued = fanOut ? FAN_OUT_PARENTS * (FAN_OUT_CHILDREN + 1) : MAX_QUEUED;
+
+        ThreadPool pool;
+        if (workStealing) {
+            pool = ThreadPool.newWorkStealingPool(threads, maxQueued, "DevTest");
+        } else {
+            pool = new ThreadPool(threads, maxQueued, "DevTest");
+        }
+
+        long start = System.nanoTime();
+        long tasks;
+        if (fanOut) {
+            tasks = runFanOut(pool);
+        } else {
+            tasks = runProducers(pool);
+        }
+
+        //wait until empty first, as the fan-out parents may still be submitting children
+        checkErrors(pool.waitUntilEmpty());
+        checkErrors(pool.waitAndStop());
+
+        long nanos = System.nanoTime() - start;
+        return (double)tasks * 1000000000d / (double)nanos;
+    }
+
+    private static long runFanOut(ThreadPool pool) {
+        for (int i = 0; i < FAN_OUT_PARENTS; i++) {
+            checkErrors(pool.submit(() -> {
+                for (int j = 0; j < FAN_OUT_CHILDREN; j++) {
+                    checkErrors(pool.submit(() -> {
+                        sink.incrementAndGet();
+                        return null;
+                    }));
+                }
+                return null;
+            }));
+        }
+        return FAN_OUT_PARENTS * (FAN_OUT_CHILDREN + 1);
+    }
+
+    private static long runProducers(ThreadPool pool) throws Exception {
+        List<Thread> producers = new ArrayList<>();
+        for (int i = 0; i < PRODUCERS; i++) {
+            Thread producer = new Thread(() -> {
+                for (int j = 0; j < TASKS_PER_PRODUCER; j++) {
+                    checkErrors(pool.submit(() -> {
+                        sink.incrementAndGet();
+                        return null;
+                    }));
+                }
+            });
+            producer.start();
+            producers.add(producer);
+        }
+        for (Thread producer: producers) {
+            producer.join();
+        }
+        return PRODUCERS * TASKS_PER_PRODUCER;
+    }
+
+    private static void checkErrors(List<ThreadPoolError> errors) {
+        if (!errors.isEmpty()) {
+            throw new RuntimeException("Task failed", errors.get(0).getException());
+        }
+    }
+}